@@ -17,26 +17,34 @@
 package de.ks.flatadocdb;
 
 import de.ks.flatadocdb.index.GlobalIndex;
+import de.ks.flatadocdb.index.IndexRebuild;
 import de.ks.flatadocdb.index.LuceneIndex;
+import de.ks.flatadocdb.index.SnapshotFormat;
 import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.session.EntityDelete;
+import de.ks.flatadocdb.util.ParallelFileWalker;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 public class Repository {
   public static final String LUCENE_DIR = ".lucene";
+  public static final String FLUSH_SUFFIX = ".flush";
+  private static final Set<String> INTERNAL_FOLDERS = new HashSet<>(Arrays.asList(GlobalIndex.INDEX_FOLDER, LUCENE_DIR, LuceneIndex.LUCENE_INDEX_FOLDER, ".git"));
   private static final Logger log = LoggerFactory.getLogger(Repository.class);
 
   protected final Path path;
@@ -44,8 +52,17 @@ public class Repository {
   protected volatile Directory luceneDirectory;
   protected volatile GlobalIndex index;
   protected volatile LuceneIndex luceneIndex;
+  protected volatile RepositoryWatcher watcher;
   protected final AtomicBoolean closed = new AtomicBoolean();
   private MetaModel metaModel;
+  private ExecutorService executorService;
+  protected long checkpointInterval = GlobalIndex.DEFAULT_CHECKPOINT_INTERVAL_SECONDS;
+  protected SnapshotFormat snapshotFormat = SnapshotFormat.JSON;
+  protected boolean idFilter;
+  protected double luceneMaxStaleSeconds = LuceneIndex.DEFAULT_MAX_STALE_SECONDS;
+  protected long luceneCommitInterval = LuceneIndex.DEFAULT_COMMIT_INTERVAL_MILLIS;
+  protected int luceneQueueCapacity;
+  protected final ParallelFileWalker fileWalker = new ParallelFileWalker(this::isRepositoryFolder, this::isRepositoryFile);
 
   public Repository(Path path) {
     this.path = path;
@@ -64,24 +81,35 @@ public class Repository {
   }
 
   public Set<Path> getAllFilesInRepository() {
-    HashSet<Path> filesInRepository = new HashSet<>();
-    SimpleFileVisitor<Path> fileVisitor = new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        if (file.toFile().exists()) {
-          filesInRepository.add(file);
-        }
-        return super.visitFile(file, attrs);
-      }
-    };
-    try {
-      Files.walkFileTree(path, fileVisitor);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    Set<Path> filesInRepository = ConcurrentHashMap.newKeySet();
+    walkFilesInRepository((file, attributes) -> filesInRepository.add(file));
     return filesInRepository;
   }
 
+  /**
+   * Walks all entity files of the repository in parallel and streams them to the given consumer.
+   * Internal folders(index, lucene, git), flush files, files scheduled for deletion and temp files are skipped.
+   * The consumer is called concurrently.
+   */
+  public void walkFilesInRepository(BiConsumer<Path, BasicFileAttributes> consumer) {
+    walkFiles(path, consumer);
+  }
+
+  protected void walkFiles(Path folder, BiConsumer<Path, BasicFileAttributes> consumer) {
+    fileWalker.walk(folder, consumer);
+  }
+
+  protected boolean isRepositoryFolder(Path folder) {
+    String name = folder.getFileName().toString();
+    return !INTERNAL_FOLDERS.contains(name);
+  }
+
+  protected boolean isRepositoryFile(Path file) {
+    String name = file.getFileName().toString();
+    boolean flushFile = name.startsWith(".") && name.endsWith(FLUSH_SUFFIX);
+    return !flushFile && !name.endsWith(EntityDelete.DELETION_SUFFIX) && !name.endsWith(GlobalIndex.TEMP_SUFFIX);
+  }
+
   public String getName() {
     return name;
   }
@@ -96,6 +124,9 @@ public class Repository {
 
   public synchronized void close() {
     if (!closed.get()) {
+      if (watcher != null) {
+        watcher.close();
+      }
       if (luceneDirectory != null) {
         try {
           luceneDirectory.close();
@@ -115,6 +146,7 @@ public class Repository {
 
   public synchronized Repository initialize(MetaModel metaModel, ExecutorService executorService) {
     this.metaModel = metaModel;
+    this.executorService = executorService;
     checkClosed();
     Path subPath = path.resolve(LUCENE_DIR);
     if (!Files.exists(subPath)) {
@@ -130,17 +162,100 @@ public class Repository {
       throw new RuntimeException(e);
     }
     index = new GlobalIndex(this, metaModel, executorService);
-    if (!index.load()) {
-      index.recreate();
+    index.setSnapshotFormat(snapshotFormat);
+    index.setIdFilterEnabled(idFilter);
+    luceneIndex = new LuceneIndex(this, metaModel, executorService, luceneMaxStaleSeconds);
+    if (index.load()) {
+      index.validate();
+      luceneIndex.catchUp(index);
+    } else {
+      recreateIndexes();
+    }
+    if (index.hasPendingChanges()) {
+      index.requestCheckpoint();
+    }
+    index.scheduleCheckpoints(checkpointInterval, TimeUnit.SECONDS);
+    luceneIndex.scheduleCommits(luceneCommitInterval, TimeUnit.MILLISECONDS);
+    if (luceneQueueCapacity > 0) {
+      luceneIndex.enableAsyncUpdates(luceneQueueCapacity);
     }
-    luceneIndex = new LuceneIndex(this, metaModel, executorService);
     return this;
   }
 
+  /**
+   * Rebuilds the global and the lucene index with a single scan of all files.
+   */
+  public void recreateIndexes() {
+    checkClosed();
+    luceneIndex.rebuild(() -> {
+      luceneIndex.clear();
+      new IndexRebuild(this, metaModel, executorService, index, luceneIndex).rebuild();
+    });
+  }
+
+  /**
+   * Starts watching the repository for files changed by other tools, the changes are applied to the global and lucene index.
+   *
+   * @param debounce quiet time after the last file event before the changed files are applied
+   */
+  public synchronized RepositoryWatcher startWatcher(long debounce, TimeUnit unit) {
+    checkClosed();
+    if (watcher == null) {
+      watcher = new RepositoryWatcher(this, debounce, unit).start();
+    }
+    return watcher;
+  }
+
+  /**
+   * @param seconds interval in which the global index writes a checkpoint if it was changed. Needs to be set before the repository is initialized.
+   */
+  public void setCheckpointInterval(long seconds) {
+    this.checkpointInterval = seconds;
+  }
+
+  /**
+   * @param snapshotFormat format used for the checkpoints of the global index. Needs to be set before the repository is initialized.
+   */
+  public void setSnapshotFormat(SnapshotFormat snapshotFormat) {
+    this.snapshotFormat = snapshotFormat;
+  }
+
+  /**
+   * @param idFilter keep a bloom filter over all ids and natural ids so lookups of absent entities don't probe the index, useful for bulk imports. Needs to be set before the repository is initialized.
+   */
+  public void setIdFilter(boolean idFilter) {
+    this.idFilter = idFilter;
+  }
+
+  /**
+   * @param seconds maximum time until changes of other threads are visible in lucene searches. Needs to be set before the repository is initialized.
+   */
+  public void setLuceneMaxStaleness(double seconds) {
+    this.luceneMaxStaleSeconds = seconds;
+  }
+
+  /**
+   * @param millis maximum time lucene changes stay uncommitted and would have to be reindexed after a crash. Needs to be set before the repository is initialized.
+   */
+  public void setLuceneCommitInterval(long millis) {
+    this.luceneCommitInterval = millis;
+  }
+
+  /**
+   * @param capacity if greater than 0 lucene updates are applied asynchronously with a queue of the given capacity, see {@link LuceneIndex#enableAsyncUpdates(int)}. Needs to be set before the repository is initialized.
+   */
+  public void setLuceneAsyncUpdates(int capacity) {
+    this.luceneQueueCapacity = capacity;
+  }
+
   public MetaModel getMetaModel() {
     return metaModel;
   }
 
+  public ExecutorService getExecutorService() {
+    return executorService;
+  }
+
   private void checkClosed() {
     if (closed.get()) {
       throw new IllegalStateException("Repository " + path + " already closed");
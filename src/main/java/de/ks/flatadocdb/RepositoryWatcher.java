@@ -0,0 +1,256 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb;
+
+import de.ks.flatadocdb.defaults.DefaultIdGenerator;
+import de.ks.flatadocdb.index.GlobalIndex;
+import de.ks.flatadocdb.index.IndexElement;
+import de.ks.flatadocdb.index.IndexRebuild;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the folders of a repository for files changed by other tools(git, rsync, editors) and applies them to the global and lucene index.
+ * Events are collected until no new event arrived for the debounce time, then the affected files are reloaded in one batch.
+ * Files whose modification time and size match their index element were written by this library and are skipped,
+ * flush and deletion files are ignored like in every repository scan.
+ */
+public class RepositoryWatcher implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(RepositoryWatcher.class);
+  /**
+   * A batch is applied after this many debounce periods even if events keep arriving.
+   */
+  private static final int MAX_DEBOUNCE_PERIODS = 10;
+
+  protected final Repository repository;
+  protected final long debounceMillis;
+  protected final WatchService watchService;
+  protected final Map<WatchKey, Path> keys = new HashMap<>();
+  protected final Set<Path> pending = new LinkedHashSet<>();
+  /**
+   * Watched folders whose key became invalid, they were deleted or moved away.
+   */
+  protected final Set<Path> vanished = new HashSet<>();
+  protected final DefaultIdGenerator idGenerator = new DefaultIdGenerator();
+  protected final Thread thread;
+  protected volatile boolean closed;
+  protected boolean overflow;
+
+  public RepositoryWatcher(Repository repository, long debounce, TimeUnit unit) {
+    this.repository = repository;
+    this.debounceMillis = unit.toMillis(debounce);
+    try {
+      watchService = repository.getPath().getFileSystem().newWatchService();
+      registerAll(repository.getPath());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    thread = new Thread(this::run, "RepositoryWatcher-" + repository.getName());
+    thread.setDaemon(true);
+  }
+
+  public RepositoryWatcher start() {
+    thread.start();
+    return this;
+  }
+
+  protected void registerAll(Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (!dir.equals(repository.getPath()) && !repository.isRepositoryFolder(dir)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  protected void run() {
+    long batchStart = 0;
+    while (!closed) {
+      try {
+        WatchKey key;
+        if (pending.isEmpty() && !overflow) {
+          key = watchService.take();
+          batchStart = System.currentTimeMillis();
+        } else {
+          key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        }
+        if (key != null) {
+          collect(key);
+        }
+        if (key == null || System.currentTimeMillis() - batchStart > debounceMillis * MAX_DEBOUNCE_PERIODS) {
+          applyPending();
+        }
+      } catch (ClosedWatchServiceException e) {
+        break;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (RuntimeException e) {
+        log.error("Could not apply file changes of {}", repository.getName(), e);
+        pending.clear();
+      }
+    }
+  }
+
+  protected void collect(WatchKey key) {
+    Path folder = keys.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        overflow = true;
+      } else if (folder != null) {
+        pending.add(folder.resolve((Path) event.context()));
+      }
+    }
+    if (!key.reset()) {
+      keys.remove(key);
+      if (folder != null) {
+        vanished.add(folder);
+        pending.add(folder);
+      }
+    }
+  }
+
+  /**
+   * Reloads all pending files that differ from their index element.
+   * After an overflow all files of the repository and all indexed elements are compared.
+   */
+  protected void applyPending() {
+    GlobalIndex index = repository.getIndex();
+    if (overflow) {
+      log.info("Watch events of {} overflowed, comparing all files", repository.getName());
+      pending.addAll(repository.getAllFilesInRepository());
+      index.getAllOfType(Object.class).forEach(element -> pending.add(element.getPathInRepository()));
+      overflow = false;
+    }
+    LinkedHashSet<Path> changed = new LinkedHashSet<>();
+    for (Path path : pending) {
+      if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        registerFolder(path, changed);
+      } else if (isRemovedFolder(path)) {
+        removeFolder(index, path, changed);
+      } else if (repository.isRepositoryFile(path) && isChanged(index, path)) {
+        changed.add(path);
+      }
+    }
+    pending.clear();
+    if (!changed.isEmpty()) {
+      log.debug("Applying {} changed files of {}", changed.size(), repository.getName());
+      new IndexRebuild(repository, repository.getMetaModel(), repository.getExecutorService(), index, repository.getLuceneIndex()).refresh(new ArrayList<>(changed));
+    }
+  }
+
+  protected boolean isChanged(GlobalIndex index, Path path) {
+    IndexElement element = index.getById(idGenerator.getSha1Hash(repository.getPath(), path));
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      return attributes.isRegularFile() && (element == null || !element.isUpToDate(attributes.lastModifiedTime().toMillis(), attributes.size()));
+    } catch (NoSuchFileException e) {
+      return element != null;
+    } catch (IOException e) {
+      log.warn("Could not read attributes of {}", path, e);
+      return false;
+    }
+  }
+
+  /**
+   * A new folder is watched and its files are added, they might have been created before the folder was registered.
+   */
+  protected void registerFolder(Path folder, Collection<Path> changed) {
+    if (keys.containsValue(folder) || !repository.isRepositoryFolder(folder)) {
+      return;
+    }
+    try {
+      registerAll(folder);
+    } catch (IOException e) {
+      log.warn("Could not watch {}", folder, e);
+    }
+    GlobalIndex index = repository.getIndex();
+    Set<Path> files = ConcurrentHashMap.newKeySet();
+    repository.walkFiles(folder, (file, attributes) -> {
+      if (isChanged(index, file)) {
+        files.add(file);
+      }
+    });
+    changed.addAll(files);
+  }
+
+  /**
+   * @return true if the path was a watched folder, its key is cancelled
+   */
+  protected boolean isRemovedFolder(Path path) {
+    boolean removed = vanished.remove(path);
+    for (Iterator<Map.Entry<WatchKey, Path>> iterator = keys.entrySet().iterator(); iterator.hasNext(); ) {
+      Map.Entry<WatchKey, Path> entry = iterator.next();
+      if (entry.getValue().equals(path)) {
+        entry.getKey().cancel();
+        iterator.remove();
+        removed = true;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * A folder deleted or moved away as a whole might only report its own deletion, all elements below it are removed.
+   */
+  protected void removeFolder(GlobalIndex index, Path folder, Collection<Path> changed) {
+    index.getAllOfType(Object.class).stream()//
+      .map(IndexElement::getPathInRepository)//
+      .filter(file -> file.startsWith(folder))//
+      .filter(file -> !Files.exists(file, LinkOption.NOFOLLOW_LINKS))//
+      .forEach(changed::add);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      log.error("Could not close watch service of {}", repository.getName(), e);
+    }
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -31,8 +31,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -45,6 +45,7 @@ import java.util.Map;
  */
 public class DefaultEntityPersister implements EntityPersister {
   private static final Logger log = LoggerFactory.getLogger(DefaultEntityPersister.class);
+  private static final int HEADER_SIZE = 1024;
   final ObjectMapper mapper = new ObjectMapper();
 
   public DefaultEntityPersister() {
@@ -67,30 +68,45 @@ public class DefaultEntityPersister implements EntityPersister {
   public Object load(Repository repository, EntityDescriptor descriptor, Path path, Map<Relation, Collection<String>> relationIds) {
     try {
       JsonNode jsonNode = mapper.readTree(path.toFile());
-      descriptor.getAllRelations().forEach(rel -> {
-        String name = rel.getRelationField().getName();
-        JsonNode jsonValue = jsonNode.findValue(name);
-        if (jsonValue.elements().hasNext()) {
-          jsonValue = jsonValue.elements().next();
-        }
-
-        ArrayList<String> ids = new ArrayList<>();
-
-        relationIds.put(rel, ids);
-
-        if (jsonValue.isContainerNode()) {
-          jsonValue.elements().forEachRemaining(id -> ids.add(id.asText()));
-        } else if (!jsonValue.isNull()) {
-          ids.add(jsonValue.asText());
-        }
-        log.debug("Found {} relation id's in {}: {}", ids.size(), name, ids);
-      });
+      readRelationIds(descriptor, jsonNode, relationIds);
       return mapper.readValue(path.toFile(), descriptor.getEntityClass());
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  @Override
+  public Object load(Repository repository, EntityDescriptor descriptor, Path path, byte[] contents, Map<Relation, Collection<String>> relationIds) {
+    try {
+      JsonNode jsonNode = mapper.readTree(contents);
+      readRelationIds(descriptor, jsonNode, relationIds);
+      return mapper.readValue(contents, descriptor.getEntityClass());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void readRelationIds(EntityDescriptor descriptor, JsonNode jsonNode, Map<Relation, Collection<String>> relationIds) {
+    descriptor.getAllRelations().forEach(rel -> {
+      String name = rel.getRelationField().getName();
+      JsonNode jsonValue = jsonNode.findValue(name);
+      if (jsonValue.elements().hasNext()) {
+        jsonValue = jsonValue.elements().next();
+      }
+
+      ArrayList<String> ids = new ArrayList<>();
+
+      relationIds.put(rel, ids);
+
+      if (jsonValue.isContainerNode()) {
+        jsonValue.elements().forEachRemaining(id -> ids.add(id.asText()));
+      } else if (!jsonValue.isNull()) {
+        ids.add(jsonValue.asText());
+      }
+      log.debug("Found {} relation id's in {}: {}", ids.size(), name, ids);
+    });
+  }
+
   @Override
   public byte[] createFileContents(Repository repository, EntityDescriptor descriptor, Object object) {
     try {
@@ -105,17 +121,16 @@ public class DefaultEntityPersister implements EntityPersister {
   public boolean canParse(Path path, EntityDescriptor descriptor) {
     if (path.toFile().exists()) {
       try (FileInputStream stream = new FileInputStream(path.toFile())) {
-        try (LineNumberReader reader = new LineNumberReader(new InputStreamReader(stream))) {
-          String line1 = reader.readLine();
-          String line2 = reader.readLine();
-          line1 = line1 == null ? "" : line1.trim();
-          line2 = line2 == null ? "" : line2.trim();
-          boolean valid = checkLine(line1, line2, descriptor.getEntityClass());
-          if (valid) {
-            log.debug("Found valid file {} to parse as {}", path, descriptor.getEntityClass().getSimpleName());
-          }
-          return valid;
+        byte[] bytes = new byte[HEADER_SIZE];
+        int read = 0;
+        for (int count; read < bytes.length && (count = stream.read(bytes, read, bytes.length - read)) >= 0; ) {
+          read += count;
         }
+        boolean valid = descriptor.getEntityClass().getName().equals(readTypeName(ByteBuffer.wrap(bytes, 0, read)));
+        if (valid) {
+          log.debug("Found valid file {} to parse as {}", path, descriptor.getEntityClass().getSimpleName());
+        }
+        return valid;
       } catch (IOException e) {
         log.debug("Unable to parse {} as {}", path, descriptor.getEntityClass(), e);
         return false;
@@ -124,9 +139,34 @@ public class DefaultEntityPersister implements EntityPersister {
     return false;
   }
 
-  private boolean checkLine(String line1, String line2, Class<?> clazz) {
-    boolean prettyPrintedLine = line2.startsWith("\"" + clazz.getName() + "\"");
-    boolean inlineDeclaration = line1.startsWith("{\"" + clazz.getName() + "\":");
-    return prettyPrintedLine || inlineDeclaration;
+  /**
+   * The entity is written as wrapper object, so the first json key is the class name.
+   */
+  @Override
+  public String readTypeName(ByteBuffer header) {
+    if (!skipWhitespace(header) || header.get() != '{' || !skipWhitespace(header) || header.get() != '"') {
+      return null;
+    }
+    int start = header.position();
+    while (header.hasRemaining()) {
+      if (header.get() == '"') {
+        int length = header.position() - 1 - start;
+        byte[] name = new byte[length];
+        header.position(start);
+        header.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  private boolean skipWhitespace(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      if (!Character.isWhitespace(buffer.get(buffer.position()))) {
+        return true;
+      }
+      buffer.get();
+    }
+    return false;
   }
 }
@@ -32,7 +32,7 @@ public class JoinedRootFolderGenerator implements FolderGenerator {
   @Override
   public Path getFolder(Repository repository, Path ownerPath, Object object) {
     Path path = repository.getPath();
-    Path resolve = path.resolve(object.getClass().getSimpleName());
+    Path resolve = path.resolve(getFolderName(object.getClass()));
     if (!resolve.toFile().exists()) {
       if (resolve.toFile().mkdir()) {
         log.debug("Create new root folder {}", resolve);
@@ -42,4 +42,9 @@ public class JoinedRootFolderGenerator implements FolderGenerator {
     }
     return resolve;
   }
+
+  @Override
+  public String getFolderName(Class<?> entityClass) {
+    return entityClass.getSimpleName();
+  }
 }
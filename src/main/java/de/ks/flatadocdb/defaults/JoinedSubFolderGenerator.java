@@ -34,7 +34,7 @@ public class JoinedSubFolderGenerator implements FolderGenerator {
   public Path getFolder(Repository repository, Path ownerPath, Object object) {
     Objects.requireNonNull(ownerPath, "No owner path given");
 
-    Path resolve = ownerPath.resolve(object.getClass().getSimpleName());
+    Path resolve = ownerPath.resolve(getFolderName(object.getClass()));
     if (!resolve.toFile().exists()) {
       if (resolve.toFile().mkdir()) {
         log.debug("Create new root folder {}", resolve);
@@ -44,4 +44,9 @@ public class JoinedSubFolderGenerator implements FolderGenerator {
     }
     return resolve;
   }
+
+  @Override
+  public String getFolderName(Class<?> entityClass) {
+    return entityClass.getSimpleName();
+  }
 }
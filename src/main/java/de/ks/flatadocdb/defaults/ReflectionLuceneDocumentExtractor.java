@@ -20,26 +20,41 @@ import com.google.common.primitives.Primitives;
 import de.ks.flatadocdb.ifc.LuceneDocumentExtractor;
 import org.apache.commons.lang3.reflect.TypeUtils;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.FloatDocValuesField;
+import org.apache.lucene.document.FloatField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.reflections.ReflectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.ZoneOffset;
-import java.util.Collection;
-import java.util.Objects;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -54,6 +69,16 @@ import java.util.stream.Collectors;
  * * LocalDateTime
  *
  * And all collections and arrays of the above types.
+ * <p>
+ * Numbers are indexed as numeric fields, LocalDate as epoch day, LocalTime as nano of day and LocalDateTime as utc epoch millis.
+ * All of them get numeric doc values for sorting.
+ * Strings(up to {@link #MAX_LENGHT_STRINGFIELD}), enums, booleans and chars get sorted doc values,
+ * the elements of collections and arrays sorted set doc values. Both can be used for sorting and faceting.
+ * The doc values are named like the field, so a field name needs to have the same {@link DocValuesKind} in all entities,
+ * which is checked when an entity is registered in the metamodel.
+ * <p>
+ * Values are read via accessors compiled with the {@link LambdaMetafactory} if the field has a public getter, otherwise via an exact method handle.
+ * {@link #createReusableDocument(Object)} reuses the lucene fields per thread and only updates their values.
  */
 public class ReflectionLuceneDocumentExtractor implements LuceneDocumentExtractor {
   private static final Logger log = LoggerFactory.getLogger(ReflectionLuceneDocumentExtractor.class);
@@ -63,11 +88,20 @@ public class ReflectionLuceneDocumentExtractor implements LuceneDocumentExtracto
 
   @Override
   public Document createDocument(Object instance) {
-    Class<?> clazz = instance.getClass();
-    Set<DocField> fields = getFields(clazz);
+    return createDocument(instance, false);
+  }
+
+  @Override
+  public Document createReusableDocument(Object instance) {
+    return createDocument(instance, true);
+  }
 
+  protected Document createDocument(Object instance, boolean reuse) {
+    Set<DocField> fields = getFields(instance.getClass());
     Document doc = new Document();
-    fields.stream().map(f -> f.apply(instance)).filter(Objects::nonNull).forEach(doc::add);
+    for (DocField field : fields) {
+      field.addTo(doc, instance, reuse);
+    }
     return doc;
   }
 
@@ -76,29 +110,55 @@ public class ReflectionLuceneDocumentExtractor implements LuceneDocumentExtracto
     if (!cache.containsKey(clazz)) {
       @SuppressWarnings("unchecked")
       Set<Field> allFields = ReflectionUtils.getAllFields(clazz, this::filterField);
-      Set<DocField> docFields = allFields.stream().map(this::createDocField).filter(Objects::nonNull).collect(Collectors.toSet());
+      Set<DocField> docFields = allFields.stream().map(this::createDocField).filter(Objects::nonNull).collect(Collectors.toCollection(LinkedHashSet::new));
       docFields.forEach(f -> log.debug("Found indexable lucene field {} for {}", f.getField(), clazz.getSimpleName()));
       cache.putIfAbsent(clazz, docFields);
     }
     return cache.get(clazz);
   }
 
+  /**
+   * @return the kind of doc values per lucene field name
+   */
+  public Map<String, DocValuesKind> getDocValuesKinds(Class<?> clazz) {
+    LinkedHashMap<String, DocValuesKind> retval = new LinkedHashMap<>();
+    getFields(clazz).forEach(f -> retval.put(f.name, f.getDocValuesKind()));
+    return retval;
+  }
+
   protected DocField createDocField(Field f) {
     try {
       Class<?> type = f.getType();
-      f.setAccessible(true);
-      MethodHandle getter = MethodHandles.lookup().unreflectGetter(f);
+      Class<?> wrapped = Primitives.wrap(type);
+      Function<Object, Object> accessor = compileAccessor(f);
 
       if (TypeUtils.isArrayType(type)) {
-        return createArrayDocField(f, getter);
+        return new MultiDocField(f, accessor, (value, consumer) -> {
+          int length = Array.getLength(value);
+          for (int i = 0; i < length; i++) {
+            consumer.accept(Array.get(value, i));
+          }
+        });
       } else if (Collection.class.isAssignableFrom(type)) {
-        return createCollectionDocField(f, getter);
+        return new MultiDocField(f, accessor, (value, consumer) -> ((Collection<?>) value).forEach(consumer));
       } else if (String.class.equals(type)) {
-        return createStringDocField(f, getter);
+        return new StringDocField(f, accessor);
+      } else if (Integer.class.equals(wrapped) || Short.class.equals(wrapped) || Byte.class.equals(wrapped)) {
+        return new LongDocField(f, accessor, value -> ((Number) value).longValue());
+      } else if (Long.class.equals(wrapped)) {
+        return new LongDocField(f, accessor, value -> (Long) value);
+      } else if (Float.class.equals(wrapped)) {
+        return new FloatDocField(f, accessor);
+      } else if (Double.class.equals(wrapped)) {
+        return new DoubleDocField(f, accessor, value -> (Double) value);
       } else if (LocalDateTime.class.equals(type)) {
-        return createLocalDateTimeDocField(f, getter);
+        return new LongDocField(f, accessor, value -> ((LocalDateTime) value).toInstant(ZoneOffset.UTC).toEpochMilli());
+      } else if (LocalDate.class.equals(type)) {
+        return new LongDocField(f, accessor, value -> ((LocalDate) value).toEpochDay());
+      } else if (LocalTime.class.equals(type)) {
+        return new LongDocField(f, accessor, value -> ((LocalTime) value).toNanoOfDay());
       } else {
-        return new DocField(f, getter, (id, value) -> new StringField(id, String.valueOf(value), org.apache.lucene.document.Field.Store.YES));
+        return new TermDocField(f, accessor);
       }
     } catch (Exception e) {
       log.error("Could not extract docfield from {}", f, e);
@@ -106,47 +166,61 @@ public class ReflectionLuceneDocumentExtractor implements LuceneDocumentExtracto
     }
   }
 
-  private DocField createLocalDateTimeDocField(Field f, MethodHandle getter) {
-    return new DocField(f, getter, (id, value) -> {
-      LocalDateTime localDateTime = (LocalDateTime) value;
-      long utcTime = localDateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
-      return new LongField(id, utcTime, org.apache.lucene.document.Field.Store.YES);
-    });
+  /**
+   * Compiles a public getter of the field into a lambda, falls back to a method handle on the field.
+   */
+  @SuppressWarnings("unchecked")
+  protected static Function<Object, Object> compileAccessor(Field f) throws IllegalAccessException {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    Method getter = findGetter(f);
+    if (getter != null) {
+      try {
+        MethodHandle handle = lookup.unreflect(getter);
+        CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),//
+          MethodType.methodType(Object.class, Object.class), handle, MethodType.methodType(Primitives.wrap(getter.getReturnType()), getter.getDeclaringClass()));
+        return (Function<Object, Object>) site.getTarget().invokeExact();
+      } catch (Throwable t) {
+        log.debug("Could not compile getter {}, using field access", getter, t);
+      }
+    }
+    f.setAccessible(true);
+    MethodHandle handle = lookup.unreflectGetter(f).asType(MethodType.methodType(Object.class, Object.class));
+    return instance -> {
+      try {
+        return (Object) handle.invokeExact(instance);
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+    };
   }
 
-  private ReflectionLuceneDocumentExtractor.DocField createStringDocField(Field f, MethodHandle getter) {
-    return new DocField(f, getter, (id, value) -> {
-      String stringValue = String.valueOf(value);
-      if (stringValue.length() > MAX_LENGHT_STRINGFIELD) {
-        return new TextField(id, stringValue, org.apache.lucene.document.Field.Store.YES);
-      } else {
-        return new StringField(id, stringValue, org.apache.lucene.document.Field.Store.YES);
+  @Nullable
+  private static Method findGetter(Field f) {
+    String capitalized = Character.toUpperCase(f.getName().charAt(0)) + f.getName().substring(1);
+    for (String name : new String[]{"get" + capitalized, "is" + capitalized}) {
+      try {
+        Method method = f.getDeclaringClass().getMethod(name);
+        if (method.getReturnType().equals(f.getType()) && !Modifier.isStatic(method.getModifiers()) && isPublic(method.getDeclaringClass())) {
+          return method;
+        }
+      } catch (NoSuchMethodException e) {
+        //next
       }
-    });
+    }
+    return null;
   }
 
-  private ReflectionLuceneDocumentExtractor.DocField createCollectionDocField(Field f, MethodHandle getter) {
-    return new DocField(f, getter, (id, value) -> {
-      @SuppressWarnings("unchecked")
-      String string = ((Collection<Object>) value).stream().map(String::valueOf).collect(Collectors.joining(", "));
-      return new StringField(id, string, org.apache.lucene.document.Field.Store.YES);
-    });
+  private static boolean isPublic(Class<?> clazz) {
+    for (Class<?> current = clazz; current != null; current = current.getEnclosingClass()) {
+      if (!Modifier.isPublic(current.getModifiers())) {
+        return false;
+      }
+    }
+    return true;
   }
 
-  private ReflectionLuceneDocumentExtractor.DocField createArrayDocField(Field f, MethodHandle getter) {
-    return new DocField(f, getter, (id, value) -> {
-      StringBuilder builder = new StringBuilder();
-
-      int length = Array.getLength(value);
-      for (int i = 0; i < length; i++) {
-        Object element = Array.get(value, i);
-        builder.append(element);
-        if (i != length - 1) {
-          builder.append(", ");
-        }
-      }
-      return new StringField(id, builder.toString(), org.apache.lucene.document.Field.Store.YES);
-    });
+  private static String toTerm(Object value) {
+    return value instanceof Enum ? ((Enum<?>) value).name() : String.valueOf(value);
   }
 
   protected boolean filterField(Field f) {
@@ -184,41 +258,280 @@ public class ReflectionLuceneDocumentExtractor implements LuceneDocumentExtracto
     return validType;
   }
 
-  public static class DocField {
-    private static final Logger log = LoggerFactory.getLogger(DocField.class);
-    private final Field field;
-    private final MethodHandle handle;
-    private final BiFunction<String, Object, ? extends IndexableField> fieldSupplier;
+  public enum DocValuesKind {
+    LONG, DOUBLE, FLOAT, SORTED, SORTED_SET
+  }
 
-    public DocField(Field field, MethodHandle handle) {
-      this(field, handle, (id, valueObject) -> new TextField(id, String.valueOf(valueObject), null));
+  /**
+   * Lucene fields of one doc field reused by one thread, lucene allows to change their values between two documents.
+   */
+  protected static final class Slot {
+    private final ArrayList<org.apache.lucene.document.Field> fields = new ArrayList<>();
+    private final ArrayList<BytesRefBuilder> bytes = new ArrayList<>();
+    private final StringBuilder builder = new StringBuilder();
+    private final ArrayList<String> terms = new ArrayList<>();
+
+    @SuppressWarnings("unchecked")
+    private <F extends org.apache.lucene.document.Field> F field(int index, Supplier<F> creator) {
+      while (fields.size() <= index) {
+        fields.add(null);
+      }
+      org.apache.lucene.document.Field field = fields.get(index);
+      if (field == null) {
+        field = creator.get();
+        fields.set(index, field);
+      }
+      return (F) field;
     }
 
-    public DocField(Field field, MethodHandle handle, BiFunction<String, Object, ? extends IndexableField> fieldSupplier) {
+    private BytesRef bytes(int index, String value) {
+      while (bytes.size() <= index) {
+        bytes.add(new BytesRefBuilder());
+      }
+      BytesRefBuilder builder = bytes.get(index);
+      builder.copyChars(value);
+      return builder.get();
+    }
+  }
+
+  public abstract static class DocField {
+    private static final Logger log = LoggerFactory.getLogger(DocField.class);
+    protected final Field field;
+    protected final String name;
+    private final Function<Object, Object> accessor;
+    private final ThreadLocal<Slot> slots = ThreadLocal.withInitial(Slot::new);
+
+    protected DocField(Field field, Function<Object, Object> accessor) {
       this.field = field;
-      this.handle = handle;
-      this.fieldSupplier = fieldSupplier;
+      this.name = field.getName();
+      this.accessor = accessor;
     }
 
+    /**
+     * @return a new instance of the indexed field, null if the value is null
+     */
     public IndexableField apply(Object instance) {
+      Document document = new Document();
+      addTo(document, instance, false);
+      return document.getFields().isEmpty() ? null : document.getFields().get(0);
+    }
+
+    /**
+     * Adds the indexed field and its doc values.
+     *
+     * @param reuse if the lucene fields of the last call of this thread should be reused
+     */
+    public void addTo(Document document, Object instance, boolean reuse) {
+      Object value;
       try {
-        Object value = handle.invoke(instance);
-        if (value == null) {
-          log.trace("Ignoring null value for {}", field);
-          return null;
-        } else {
-          IndexableField apply = fieldSupplier.apply(field.getName(), value);
-          log.trace("Indexing value for {}. name={}, value={} ", field, apply.name(), apply.stringValue().length() > 100 ? apply.stringValue().substring(0, 100) : apply.stringValue());
-          return apply;
-        }
-      } catch (Throwable t) {
-        log.error("Could not get value from field", t);
-        return null;
+        value = accessor.apply(instance);
+      } catch (RuntimeException e) {
+        log.error("Could not get value from field {}", field, e);
+        return;
+      }
+      if (value == null) {
+        log.trace("Ignoring null value for {}", field);
+      } else {
+        add(document, value, reuse ? slots.get() : null);
       }
     }
 
+    /**
+     * @param slot reused fields, null if new fields have to be created
+     */
+    protected abstract void add(Document document, Object value, @Nullable Slot slot);
+
+    public abstract DocValuesKind getDocValuesKind();
+
+    protected static <F extends org.apache.lucene.document.Field> F field(@Nullable Slot slot, int index, Supplier<F> creator) {
+      return slot == null ? creator.get() : slot.field(index, creator);
+    }
+
+    protected static BytesRef bytes(@Nullable Slot slot, int index, String value) {
+      return slot == null ? new BytesRef(value) : slot.bytes(index, value);
+    }
+
     public Field getField() {
       return field;
     }
   }
+
+  static class LongDocField extends DocField {
+    private final ToLongFunction<Object> converter;
+
+    LongDocField(Field field, Function<Object, Object> accessor, ToLongFunction<Object> converter) {
+      super(field, accessor);
+      this.converter = converter;
+    }
+
+    @Override
+    public DocValuesKind getDocValuesKind() {
+      return DocValuesKind.LONG;
+    }
+
+    @Override
+    protected void add(Document document, Object value, @Nullable Slot slot) {
+      long converted = converter.applyAsLong(value);
+      LongField indexed = field(slot, 0, () -> new LongField(name, converted, org.apache.lucene.document.Field.Store.YES));
+      indexed.setLongValue(converted);
+      NumericDocValuesField docValues = field(slot, 1, () -> new NumericDocValuesField(name, converted));
+      docValues.setLongValue(converted);
+      document.add(indexed);
+      document.add(docValues);
+    }
+  }
+
+  static class DoubleDocField extends DocField {
+    private final ToDoubleFunction<Object> converter;
+
+    DoubleDocField(Field field, Function<Object, Object> accessor, ToDoubleFunction<Object> converter) {
+      super(field, accessor);
+      this.converter = converter;
+    }
+
+    @Override
+    public DocValuesKind getDocValuesKind() {
+      return DocValuesKind.DOUBLE;
+    }
+
+    @Override
+    protected void add(Document document, Object value, @Nullable Slot slot) {
+      double converted = converter.applyAsDouble(value);
+      DoubleField indexed = field(slot, 0, () -> new DoubleField(name, converted, org.apache.lucene.document.Field.Store.YES));
+      indexed.setDoubleValue(converted);
+      DoubleDocValuesField docValues = field(slot, 1, () -> new DoubleDocValuesField(name, converted));
+      docValues.setDoubleValue(converted);
+      document.add(indexed);
+      document.add(docValues);
+    }
+  }
+
+  static class FloatDocField extends DocField {
+    FloatDocField(Field field, Function<Object, Object> accessor) {
+      super(field, accessor);
+    }
+
+    @Override
+    public DocValuesKind getDocValuesKind() {
+      return DocValuesKind.FLOAT;
+    }
+
+    @Override
+    protected void add(Document document, Object value, @Nullable Slot slot) {
+      float converted = (Float) value;
+      FloatField indexed = field(slot, 0, () -> new FloatField(name, converted, org.apache.lucene.document.Field.Store.YES));
+      indexed.setFloatValue(converted);
+      FloatDocValuesField docValues = field(slot, 1, () -> new FloatDocValuesField(name, converted));
+      docValues.setFloatValue(converted);
+      document.add(indexed);
+      document.add(docValues);
+    }
+  }
+
+  /**
+   * Enums, booleans and chars.
+   */
+  static class TermDocField extends DocField {
+    TermDocField(Field field, Function<Object, Object> accessor) {
+      super(field, accessor);
+    }
+
+    @Override
+    public DocValuesKind getDocValuesKind() {
+      return DocValuesKind.SORTED;
+    }
+
+    @Override
+    protected void add(Document document, Object value, @Nullable Slot slot) {
+      String term = toTerm(value);
+      StringField indexed = field(slot, 0, () -> new StringField(name, term, org.apache.lucene.document.Field.Store.YES));
+      indexed.setStringValue(term);
+      SortedDocValuesField docValues = field(slot, 1, () -> new SortedDocValuesField(name, new BytesRef()));
+      docValues.setBytesValue(bytes(slot, 0, term));
+      document.add(indexed);
+      document.add(docValues);
+    }
+  }
+
+  /**
+   * Short strings are indexed as one term with doc values, long strings are tokenized.
+   */
+  static class StringDocField extends DocField {
+    StringDocField(Field field, Function<Object, Object> accessor) {
+      super(field, accessor);
+    }
+
+    @Override
+    public DocValuesKind getDocValuesKind() {
+      return DocValuesKind.SORTED;
+    }
+
+    @Override
+    protected void add(Document document, Object value, @Nullable Slot slot) {
+      String string = (String) value;
+      if (string.length() > MAX_LENGHT_STRINGFIELD) {
+        TextField indexed = field(slot, 2, () -> new TextField(name, string, org.apache.lucene.document.Field.Store.YES));
+        indexed.setStringValue(string);
+        document.add(indexed);
+      } else {
+        StringField indexed = field(slot, 0, () -> new StringField(name, string, org.apache.lucene.document.Field.Store.YES));
+        indexed.setStringValue(string);
+        SortedDocValuesField docValues = field(slot, 1, () -> new SortedDocValuesField(name, new BytesRef()));
+        docValues.setBytesValue(bytes(slot, 0, string));
+        document.add(indexed);
+        document.add(docValues);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  interface ElementVisitor {
+    void visit(Object value, Consumer<Object> consumer);
+  }
+
+  /**
+   * Collections and arrays, the joined elements are indexed as one term, every distinct element gets sorted set doc values.
+   */
+  static class MultiDocField extends DocField {
+    private final ElementVisitor visitor;
+
+    MultiDocField(Field field, Function<Object, Object> accessor, ElementVisitor visitor) {
+      super(field, accessor);
+      this.visitor = visitor;
+    }
+
+    @Override
+    public DocValuesKind getDocValuesKind() {
+      return DocValuesKind.SORTED_SET;
+    }
+
+    @Override
+    protected void add(Document document, Object value, @Nullable Slot slot) {
+      StringBuilder builder = slot == null ? new StringBuilder() : slot.builder;
+      List<String> terms = slot == null ? new ArrayList<>() : slot.terms;
+      builder.setLength(0);
+      terms.clear();
+      visitor.visit(value, element -> {
+        if (builder.length() > 0) {
+          builder.append(", ");
+        }
+        builder.append(element);
+        if (element != null) {
+          String term = toTerm(element);
+          if (term.length() <= MAX_LENGHT_STRINGFIELD && !terms.contains(term)) {
+            terms.add(term);
+          }
+        }
+      });
+      String joined = builder.toString();
+      StringField indexed = field(slot, 0, () -> new StringField(name, joined, org.apache.lucene.document.Field.Store.YES));
+      indexed.setStringValue(joined);
+      document.add(indexed);
+      for (int i = 0; i < terms.size(); i++) {
+        SortedSetDocValuesField docValues = field(slot, i + 1, () -> new SortedSetDocValuesField(name, new BytesRef()));
+        docValues.setBytesValue(bytes(slot, i, terms.get(i)));
+        document.add(docValues);
+      }
+    }
+  }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.exception;
+
+import java.util.List;
+
+/**
+ * A batch of a bulk session could only be written partially.
+ * The entities returned by {@link #getCommitted()} are written and indexed, all others of the batch are not.
+ */
+public class BulkInsertException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  private final transient List<Object> committed;
+
+  public BulkInsertException(String message, List<Object> committed, Throwable cause) {
+    super(message, cause);
+    this.committed = committed;
+  }
+
+  public List<Object> getCommitted() {
+    return committed;
+  }
+}
@@ -22,6 +22,7 @@ import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.metamodel.relation.Relation;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Map;
@@ -46,6 +47,16 @@ public interface EntityPersister {
    */
   Object load(Repository repository, EntityDescriptor descriptor, Path path, Map<Relation, Collection<String>> relationIds);
 
+  /**
+   * Loads the entity from the already read contents of the given path, used for cached files.
+   * The default implementation reads the file again.
+   *
+   * @param contents complete contents of the file
+   */
+  default Object load(Repository repository, EntityDescriptor descriptor, Path path, byte[] contents, Map<Relation, Collection<String>> relationIds) {
+    return load(repository, descriptor, path, relationIds);
+  }
+
   /**
    * Generates the file contents for the given object
    *
@@ -65,4 +76,15 @@ public interface EntityPersister {
    * @return true/false
    */
   boolean canParse(Path path, EntityDescriptor descriptor);
+
+  /**
+   * Extracts the name of the stored entity class from the first bytes of a file.
+   * Used to detect the entity type of a file without calling {@link #canParse(Path, EntityDescriptor)} for every descriptor.
+   *
+   * @param header first bytes of the file, might not contain the complete file
+   * @return the class name or null if the type can't be detected from the header
+   */
+  default String readTypeName(ByteBuffer header) {
+    return null;
+  }
 }
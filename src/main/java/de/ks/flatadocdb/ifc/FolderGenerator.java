@@ -36,4 +36,14 @@ public interface FolderGenerator {
    */
   Path getFolder(Repository repository, @Nullable Path ownerPath, Object object);
 
+  /**
+   * Name of a folder that contains the entities of the given class, used as hint to detect the entity type of a file.
+   *
+   * @return the folder name or null if there is no fixed folder
+   */
+  @Nullable
+  default String getFolderName(Class<?> entityClass) {
+    return null;
+  }
+
 }
@@ -26,6 +26,14 @@ public interface LuceneDocumentExtractor<E> {
 
   Document createDocument(E instance);
 
+  /**
+   * Like {@link #createDocument(Object)}, but the fields of the document may be reused by the next call of the same thread.
+   * Used by the lucene index which consumes the document immediately.
+   */
+  default Document createReusableDocument(E instance) {
+    return createDocument(instance);
+  }
+
   /**
    * @return true if id, path and naturalid should be added although the document might be empty
    */
@@ -0,0 +1,476 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.query.Query;
+import de.ks.flatadocdb.session.NaturalId;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Compact binary snapshot of the {@link GlobalIndex}.
+ * The file is opened via a memory mapped buffer, the query columns are only decoded when they are used.
+ *
+ * Layout:
+ *
+ * * header: magic, version, amount of classes, folders, elements and queries
+ * * class table: all entity/query owner and enum class names
+ * * folder table: all folders relative to the repository
+ * * elements: 20 byte sha1 id, class index, folder index, file name, md5, last modified, size, change sequence, natural id
+ * * query columns: owner class index, query name, byte length of the column and one value per element
+ */
+public class BinaryIndexSnapshot {
+  private static final Logger log = LoggerFactory.getLogger(BinaryIndexSnapshot.class);
+  public static final int MAGIC = 0x464a4442;//FJDB
+  public static final int VERSION = 2;
+  public static final int ID_LENGTH = ElementId.LENGTH;
+
+  private static final byte ABSENT = 0;
+  private static final byte NULL = 1;
+  private static final byte STRING = 2;
+  private static final byte INTEGER = 3;
+  private static final byte LONG = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte FLOAT = 6;
+  private static final byte SHORT = 7;
+  private static final byte BYTE = 8;
+  private static final byte CHARACTER = 9;
+  private static final byte BOOLEAN = 10;
+  private static final byte LOCAL_DATE = 11;
+  private static final byte LOCAL_TIME = 12;
+  private static final byte LOCAL_DATE_TIME = 13;
+  private static final byte ENUM = 14;
+  private static final byte SERIALIZED = 15;
+  /**
+   * Class name and json of values which are not serializable.
+   */
+  private static final byte JSON = 16;
+
+  public static void write(Path file, Path repositoryPath, List<IndexElement> elements, Map<Query<?, ?>, ? extends Map<IndexElement, Object>> queries, ObjectMapper mapper) throws IOException {
+    LinkedHashMap<String, Integer> classes = new LinkedHashMap<>();
+    LinkedHashMap<String, Integer> folders = new LinkedHashMap<>();
+    for (IndexElement element : elements) {
+      classes.putIfAbsent(element.getEntityClass().getName(), classes.size());
+      folders.putIfAbsent(getRelativeFolder(repositoryPath, element.getFolder()), folders.size());
+      if (element.hasNaturalId()) {
+        addEnumClass(classes, element.getNaturalId().getKey());
+      }
+    }
+    for (Map.Entry<Query<?, ?>, ? extends Map<IndexElement, Object>> entry : queries.entrySet()) {
+      classes.putIfAbsent(entry.getKey().getOwnerClass().getName(), classes.size());
+      for (Object value : entry.getValue().values()) {
+        addEnumClass(classes, value);
+      }
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(classes.size());
+      out.writeInt(folders.size());
+      out.writeInt(elements.size());
+      out.writeInt(queries.size());
+      for (String className : classes.keySet()) {
+        writeString(out, className);
+      }
+      for (String folder : folders.keySet()) {
+        writeString(out, folder);
+      }
+      for (IndexElement element : elements) {
+        out.write(element.getElementId().toBytes());
+        out.writeInt(classes.get(element.getEntityClass().getName()));
+        out.writeInt(folders.get(getRelativeFolder(repositoryPath, element.getFolder())));
+        writeString(out, element.getFileName());
+        byte[] md5 = element.getMd5Sum() == null ? new byte[0] : element.getMd5Sum();
+        out.writeByte(md5.length);
+        out.write(md5);
+        out.writeLong(element.getLastModified());
+        out.writeLong(element.getSize());
+        out.writeLong(element.getSequence());
+        writeValue(out, element.hasNaturalId() ? element.getNaturalId().getKey() : null, classes, mapper);
+      }
+      for (Map.Entry<Query<?, ?>, ? extends Map<IndexElement, Object>> entry : queries.entrySet()) {
+        Query<?, ?> query = entry.getKey();
+        Map<IndexElement, Object> values = entry.getValue();
+        out.writeInt(classes.get(query.getOwnerClass().getName()));
+        writeString(out, query.getName());
+
+        ByteArrayOutputStream columnBytes = new ByteArrayOutputStream();
+        DataOutputStream column = new DataOutputStream(columnBytes);
+        for (IndexElement element : elements) {
+          Object value = values.get(element);
+          if (value == null) {
+            column.writeByte(ABSENT);
+          } else {
+            writeValue(column, value == QueryValues.NULL ? null : value, classes, mapper);
+          }
+        }
+        column.flush();
+        out.writeInt(columnBytes.size());
+        columnBytes.writeTo(out);
+      }
+    }
+  }
+
+  private static void addEnumClass(Map<String, Integer> classes, Object value) {
+    if (value instanceof Enum) {
+      classes.putIfAbsent(((Enum<?>) value).getDeclaringClass().getName(), classes.size());
+    }
+  }
+
+  /**
+   * @param mapper used for values which were written as json, has to be configured like the one used for writing
+   */
+  public static Reader open(Path file, ObjectMapper mapper) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new Reader(buffer, mapper);
+    }
+  }
+
+  public static class Reader {
+    private final ByteBuffer buffer;
+    private final List<Class<?>> classes;
+    private final List<String> folders;
+    private final int elementCount;
+    private final int elementsOffset;
+    private final List<Column> columns;
+    private final ObjectMapper mapper;
+
+    Reader(ByteBuffer mapped, ObjectMapper mapper) throws IOException {
+      this.mapper = mapper;
+      ByteBuffer buffer = mapped.duplicate();
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Invalid binary index snapshot");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary index snapshot version " + version);
+      }
+      int classCount = buffer.getInt();
+      int folderCount = buffer.getInt();
+      elementCount = buffer.getInt();
+      int queryCount = buffer.getInt();
+
+      classes = new ArrayList<>(classCount);
+      for (int i = 0; i < classCount; i++) {
+        classes.add(loadClass(readString(buffer)));
+      }
+      folders = new ArrayList<>(folderCount);
+      for (int i = 0; i < folderCount; i++) {
+        folders.add(readString(buffer));
+      }
+      elementsOffset = buffer.position();
+      for (int i = 0; i < elementCount; i++) {
+        skipElement(buffer);
+      }
+      columns = new ArrayList<>(queryCount);
+      for (int i = 0; i < queryCount; i++) {
+        Class<?> owner = classes.get(buffer.getInt());
+        String name = readString(buffer);
+        int length = buffer.getInt();
+        columns.add(new Column(owner, name, buffer.position()));
+        buffer.position(buffer.position() + length);
+      }
+      this.buffer = mapped;
+    }
+
+    /**
+     * @return all elements ordered by their ordinal, elements of unknown classes are null
+     */
+    public List<IndexElement> readElements(Repository repository) {
+      ByteBuffer buffer = this.buffer.duplicate();
+      buffer.position(elementsOffset);
+      ArrayList<IndexElement> retval = new ArrayList<>(elementCount);
+      byte[] id = new byte[ID_LENGTH];
+      for (int i = 0; i < elementCount; i++) {
+        buffer.get(id);
+        Class<?> entityClass = classes.get(buffer.getInt());
+        String folder = folders.get(buffer.getInt());
+        String fileName = readString(buffer);
+        byte[] md5 = new byte[buffer.get()];
+        buffer.get(md5);
+        long lastModified = buffer.getLong();
+        long size = buffer.getLong();
+        long sequence = buffer.getLong();
+        Serializable naturalId = (Serializable) readValue(buffer, classes, mapper);
+        if (entityClass == null) {
+          retval.add(null);
+          continue;
+        }
+        Path folderPath = folder.isEmpty() ? repository.getPath() : repository.getPath().resolve(folder);
+        IndexElement element = new IndexElement(repository, folderPath.resolve(fileName), ElementId.of(id), naturalId == null ? null : new NaturalId(entityClass, naturalId), entityClass);
+        element.setMd5Sum(md5.length == 0 ? null : md5).setLastModified(lastModified).setSize(size).setSequence(sequence);
+        retval.add(element);
+      }
+      return retval;
+    }
+
+    public List<Column> getColumns() {
+      return columns;
+    }
+
+    public int getElementCount() {
+      return elementCount;
+    }
+
+    List<Class<?>> getClasses() {
+      return classes;
+    }
+
+    public class Column {
+      private final Class<?> owner;
+      private final String queryName;
+      private final int offset;
+
+      Column(Class<?> owner, String queryName, int offset) {
+        this.owner = owner;
+        this.queryName = queryName;
+        this.offset = offset;
+      }
+
+      public Class<?> getOwner() {
+        return owner;
+      }
+
+      public String getQueryName() {
+        return queryName;
+      }
+
+      /**
+       * @param elements the elements returned by {@link #readElements(Repository)}
+       * @param include  filter for elements that are still valid
+       */
+      public ConcurrentHashMap<IndexElement, Object> read(List<IndexElement> elements, Predicate<IndexElement> include) {
+        ByteBuffer column = buffer.duplicate();
+        column.position(offset);
+        ConcurrentHashMap<IndexElement, Object> retval = new ConcurrentHashMap<>();
+        for (IndexElement element : elements) {
+          if (column.get(column.position()) == ABSENT) {
+            column.get();
+            continue;
+          }
+          Object value = readValue(column, classes, mapper);
+          if (element != null && include.test(element)) {
+            retval.put(element, QueryValues.wrapNullable(value));
+          }
+        }
+        return retval;
+      }
+    }
+
+    private void skipElement(ByteBuffer buffer) {
+      buffer.position(buffer.position() + ID_LENGTH + 8);
+      readString(buffer);
+      int md5Length = buffer.get();
+      buffer.position(buffer.position() + md5Length + 24);
+      readValue(buffer, classes, mapper);
+    }
+
+    private static Class<?> loadClass(String name) {
+      try {
+        return Class.forName(name, false, Thread.currentThread().getContextClassLoader());
+      } catch (ClassNotFoundException e) {
+        log.warn("Could not load class {} from index snapshot", name);
+        return null;
+      }
+    }
+  }
+
+  static String getRelativeFolder(Path repositoryPath, Path folder) {
+    return StringUtils.replace(repositoryPath.relativize(folder).toString(), "\\", "/");
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeValue(DataOutputStream out, Object value, Map<String, Integer> classes, ObjectMapper mapper) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Short) {
+      out.writeByte(SHORT);
+      out.writeShort((Short) value);
+    } else if (value instanceof Byte) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) value);
+    } else if (value instanceof Character) {
+      out.writeByte(CHARACTER);
+      out.writeChar((Character) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof LocalDate) {
+      out.writeByte(LOCAL_DATE);
+      out.writeLong(((LocalDate) value).toEpochDay());
+    } else if (value instanceof LocalTime) {
+      out.writeByte(LOCAL_TIME);
+      out.writeLong(((LocalTime) value).toNanoOfDay());
+    } else if (value instanceof LocalDateTime) {
+      LocalDateTime time = (LocalDateTime) value;
+      out.writeByte(LOCAL_DATE_TIME);
+      out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+      out.writeInt(time.getNano());
+    } else if (value instanceof Enum) {
+      Enum<?> enumValue = (Enum<?>) value;
+      Class<?> enumClass = enumValue.getDeclaringClass();
+      Integer index = classes.get(enumClass.getName());
+      if (index == null) {
+        writeObject(out, value, mapper);
+      } else {
+        out.writeByte(ENUM);
+        out.writeInt(index);
+        writeString(out, enumValue.name());
+      }
+    } else {
+      writeObject(out, value, mapper);
+    }
+  }
+
+  /**
+   * Query values don't need to be serializable, those which aren't are written as json like in the json snapshot.
+   */
+  private static void writeObject(DataOutputStream out, Object value, ObjectMapper mapper) throws IOException {
+    if (value instanceof Serializable) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+        objectOut.writeObject(value);
+        objectOut.flush();
+        out.writeByte(SERIALIZED);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        return;
+      } catch (NotSerializableException e) {
+        log.debug("Writing {} as json", value.getClass().getName(), e);
+      }
+    }
+    byte[] json = mapper.writeValueAsBytes(value);
+    out.writeByte(JSON);
+    writeString(out, value.getClass().getName());
+    out.writeInt(json.length);
+    out.write(json);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object readValue(ByteBuffer buffer, List<Class<?>> classes, ObjectMapper mapper) {
+    byte type = buffer.get();
+    switch (type) {
+      case ABSENT:
+      case NULL:
+        return null;
+      case STRING:
+        return readString(buffer);
+      case INTEGER:
+        return buffer.getInt();
+      case LONG:
+        return buffer.getLong();
+      case DOUBLE:
+        return buffer.getDouble();
+      case FLOAT:
+        return buffer.getFloat();
+      case SHORT:
+        return buffer.getShort();
+      case BYTE:
+        return buffer.get();
+      case CHARACTER:
+        return buffer.getChar();
+      case BOOLEAN:
+        return buffer.get() != 0;
+      case LOCAL_DATE:
+        return LocalDate.ofEpochDay(buffer.getLong());
+      case LOCAL_TIME:
+        return LocalTime.ofNanoOfDay(buffer.getLong());
+      case LOCAL_DATE_TIME:
+        long seconds = buffer.getLong();
+        return LocalDateTime.ofEpochSecond(seconds, buffer.getInt(), ZoneOffset.UTC);
+      case ENUM:
+        Class<?> enumClass = classes.get(buffer.getInt());
+        String name = readString(buffer);
+        if (enumClass == null) {
+          return null;
+        }
+        try {
+          return Enum.valueOf((Class) enumClass, name);
+        } catch (IllegalArgumentException e) {
+          log.warn("Unknown constant {} of {} in index snapshot", name, enumClass.getName());
+          return null;
+        }
+      case SERIALIZED:
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+          return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+          log.warn("Could not read serialized value from index snapshot", e);
+          return null;
+        }
+      case JSON:
+        String className = readString(buffer);
+        byte[] json = new byte[buffer.getInt()];
+        buffer.get(json);
+        try {
+          return mapper.readValue(json, Class.forName(className, false, Thread.currentThread().getContextClassLoader()));
+        } catch (IOException | ClassNotFoundException e) {
+          log.warn("Could not read json value of {} from index snapshot", className, e);
+          return null;
+        }
+      default:
+        throw new IllegalStateException("Unknown value type " + type + " in binary index snapshot");
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of the sha1 id of an entity, 20 bytes stored in primitive fields instead of a 40 character hex string.
+ * Serialized as hex string.
+ */
+@Immutable
+public final class ElementId {
+  public static final int LENGTH = 20;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final long high;
+  private final long mid;
+  private final int low;
+
+  private ElementId(long high, long mid, int low) {
+    this.high = high;
+    this.mid = mid;
+    this.low = low;
+  }
+
+  public static ElementId of(byte[] bytes) {
+    if (bytes.length != LENGTH) {
+      throw new IllegalArgumentException("Expected " + LENGTH + " bytes but got " + bytes.length);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    return new ElementId(buffer.getLong(), buffer.getLong(), buffer.getInt());
+  }
+
+  @JsonCreator
+  public static ElementId of(String hex) {
+    ElementId id = parse(hex);
+    if (id == null) {
+      throw new IllegalArgumentException("Id " + hex + " is no sha1 hash");
+    }
+    return id;
+  }
+
+  /**
+   * @return the id or null if the given string is no hex encoded sha1 hash
+   */
+  @Nullable
+  public static ElementId parse(@Nullable String hex) {
+    if (hex == null || hex.length() != LENGTH * 2) {
+      return null;
+    }
+    long high = 0, mid = 0, low = 0;
+    for (int i = 0; i < hex.length(); i++) {
+      int digit = Character.digit(hex.charAt(i), 16);
+      if (digit < 0) {
+        return null;
+      }
+      if (i < 16) {
+        high = high << 4 | digit;
+      } else if (i < 32) {
+        mid = mid << 4 | digit;
+      } else {
+        low = low << 4 | digit;
+      }
+    }
+    return new ElementId(high, mid, (int) low);
+  }
+
+  public byte[] toBytes() {
+    return ByteBuffer.allocate(LENGTH).putLong(high).putLong(mid).putInt(low).array();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ElementId)) {
+      return false;
+    }
+    ElementId other = (ElementId) o;
+    return high == other.high && mid == other.mid && low == other.low;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (high ^ (high >>> 32));
+  }
+
+  @JsonValue
+  @Override
+  public String toString() {
+    char[] chars = new char[LENGTH * 2];
+    appendHex(chars, 0, high, 16);
+    appendHex(chars, 16, mid, 16);
+    appendHex(chars, 32, low, 8);
+    return new String(chars);
+  }
+
+  private static void appendHex(char[] chars, int offset, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      chars[offset + i] = HEX[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.ifc.EntityPersister;
+import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Detects the entity descriptor responsible for a file.
+ *
+ * . The first bytes of the file are read once and every persister type extracts the stored class name, which is looked up in a table.
+ * . Descriptors whose persister can't read the type from the header are tried via {@link EntityPersister#canParse(Path, EntityDescriptor)},
+ * descriptors whose folder name matches one of the parent folders first.
+ */
+@ThreadSafe
+public class EntityTypeDetector {
+  private static final Logger log = LoggerFactory.getLogger(EntityTypeDetector.class);
+  public static final int HEADER_SIZE = 1024;
+
+  private static final ThreadLocal<ByteBuffer> headerBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(HEADER_SIZE));
+
+  protected final Repository repository;
+  protected final Map<Class<?>, EntityPersister> persisterTypes = new LinkedHashMap<>();
+  protected final Map<String, EntityDescriptor> typeNames = new HashMap<>();
+  protected final Map<String, List<EntityDescriptor>> folderHints = new HashMap<>();
+  protected final List<EntityDescriptor> entities;
+
+  public EntityTypeDetector(Repository repository, List<EntityDescriptor> entities) {
+    this.repository = repository;
+    this.entities = entities;
+    for (EntityDescriptor descriptor : entities) {
+      EntityPersister persister = descriptor.getPersister();
+      persisterTypes.putIfAbsent(persister.getClass(), persister);
+      typeNames.put(descriptor.getEntityClass().getName(), descriptor);
+      String folderName = descriptor.getFolderGenerator().getFolderName(descriptor.getEntityClass());
+      if (folderName != null) {
+        folderHints.computeIfAbsent(folderName, k -> new ArrayList<>()).add(descriptor);
+      }
+    }
+  }
+
+  /**
+   * @return the responsible descriptor or null if no descriptor can parse the file
+   */
+  public EntityDescriptor detect(Path file) {
+    ByteBuffer header = readHeader(file);
+    if (header == null) {
+      return null;
+    }
+    Set<Class<?>> sniffed = new HashSet<>();
+    for (Map.Entry<Class<?>, EntityPersister> entry : persisterTypes.entrySet()) {
+      String typeName = entry.getValue().readTypeName(header.duplicate());
+      if (typeName == null) {
+        continue;
+      }
+      sniffed.add(entry.getKey());
+      EntityDescriptor descriptor = typeNames.get(typeName);
+      if (descriptor != null && descriptor.getPersister().getClass() == entry.getKey()) {
+        log.debug("Found file {} which can be parsed as {}", file, descriptor.getEntityClass().getSimpleName());
+        return descriptor;
+      }
+    }
+    if (sniffed.size() == persisterTypes.size()) {
+      log.debug("Could not find any entity descriptor for {}", file);
+      return null;
+    }
+    for (EntityDescriptor descriptor : getCandidates(file)) {
+      if (!sniffed.contains(descriptor.getPersister().getClass()) && descriptor.getPersister().canParse(file, descriptor)) {
+        log.debug("Found file {} which can be parsed as {}", file, descriptor.getEntityClass().getSimpleName());
+        return descriptor;
+      }
+    }
+    log.debug("Could not find any entity descriptor for {}", file);
+    return null;
+  }
+
+  /**
+   * @return all descriptors, the ones matching a parent folder of the file first
+   */
+  protected Collection<EntityDescriptor> getCandidates(Path file) {
+    LinkedHashSet<EntityDescriptor> candidates = new LinkedHashSet<>();
+    for (Path parent = file.getParent(); parent != null && !parent.equals(repository.getPath()); parent = parent.getParent()) {
+      List<EntityDescriptor> hinted = folderHints.get(parent.getFileName().toString());
+      if (hinted != null) {
+        candidates.addAll(hinted);
+      }
+    }
+    candidates.addAll(entities);
+    return candidates;
+  }
+
+  /**
+   * Reads the first bytes of the file into a buffer pooled per thread.
+   *
+   * @return flipped buffer or null if the file could not be read
+   */
+  protected ByteBuffer readHeader(Path file) {
+    ByteBuffer buffer = headerBuffer.get();
+    buffer.clear();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        //fill
+      }
+    } catch (IOException e) {
+      log.debug("Could not read header of {}", file, e);
+      return null;
+    }
+    buffer.flip();
+    return buffer.asReadOnlyBuffer();
+  }
+}
@@ -28,21 +28,22 @@ import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.query.Query;
 import de.ks.flatadocdb.session.NaturalId;
 import de.ks.flatadocdb.session.SessionEntry;
-import org.apache.commons.codec.digest.DigestUtils;
+import de.ks.flatadocdb.util.FileSync;
+import de.ks.flatadocdb.util.TimeProfiler;
+import de.ks.flatadocdb.util.WindowsSafeFileAccess;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -54,16 +55,61 @@ import java.util.stream.Collectors;
  * * Entity class
  * * md5sum (for rebuild checking)
  * * last modified(for rebuild checking)
+ *
+ * All changes done via sessions are appended to the {@link IndexChangeLog}.
+ * Checkpoints write the complete index into the snapshot files and are triggered periodically,
+ * after a given amount of changes and when the index is closed.
  */
 public class GlobalIndex extends Index {
   public static final String INDEX_FOLDER = ".index";
   public static final String INDEX_FILE = "index.json";
   public static final String QUERY_FILE = "query.json";
+  public static final String BINARY_FILE = "index.bin";
+  public static final String ID_FILTER_FILE = "ids.filter";
+  public static final String SEQUENCE_FILE = "sequence";
+  public static final String TEMP_SUFFIX = ".tmp";
+  public static final long DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 60;
+  public static final long DEFAULT_CHECKPOINT_THRESHOLD = 10000;
   private static final Logger log = LoggerFactory.getLogger(GlobalIndex.class);
 
   protected final Map<NaturalId, IndexElement> naturalIdToElement = new ConcurrentHashMap<>();
-  protected final Map<String, IndexElement> idToElement = new ConcurrentHashMap<>();
-  protected final ConcurrentHashMap<Query, ConcurrentHashMap<IndexElement, Optional<Object>>> queryElements = new ConcurrentHashMap<>();
+  protected final Map<ElementId, IndexElement> idToElement = new ConcurrentHashMap<>();
+  protected final ConcurrentHashMap<Class<?>, Set<IndexElement>> classToElements = new ConcurrentHashMap<>();
+  protected final ConcurrentHashMap<Query<?, ?>, QueryValueIndex> valueIndexes = new ConcurrentHashMap<>();
+  /**
+   * Raw values of each query, null values are stored as {@link QueryValues#NULL}.
+   */
+  protected final ConcurrentHashMap<Query<?, ?>, ConcurrentHashMap<IndexElement, Object>> queryElements = new ConcurrentHashMap<>();
+  /**
+   * Query columns of a binary snapshot that were not decoded yet.
+   */
+  protected final ConcurrentHashMap<Query<?, ?>, Callable<ConcurrentHashMap<IndexElement, Object>>> pendingQueryColumns = new ConcurrentHashMap<>();
+
+  /**
+   * Every change gets the next sequence number, elements keep the one of their last change.
+   * Changes that still have to be applied to the lucene index are kept in the backlog until they are acknowledged.
+   */
+  protected final AtomicLong sequence = new AtomicLong();
+  protected final ConcurrentSkipListSet<Long> luceneBacklog = new ConcurrentSkipListSet<>();
+  protected final Object sequenceLock = new Object();
+
+  protected final IndexChangeLog changeLog;
+  protected final Object checkpointLock = new Object();
+  protected final AtomicLong pendingChanges = new AtomicLong();
+  protected final AtomicBoolean checkpointRequested = new AtomicBoolean();
+  protected final ScheduledExecutorService checkpointExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("GlobalIndexCheckpoint-%d").build());
+  protected volatile ScheduledFuture<?> scheduledCheckpoints;
+  protected volatile long checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+  protected volatile SnapshotFormat snapshotFormat = SnapshotFormat.JSON;
+  protected volatile boolean idFilterEnabled;
+  /**
+   * Optional filter answering lookups of absent ids without a map probe, null if disabled.
+   */
+  protected volatile IdFilter idFilter;
+  /**
+   * Filter which is currently filled by {@link #rebuildIdFilter()}, elements added meanwhile are put into it too.
+   */
+  protected volatile IdFilter rebuildingIdFilter;
 
   public GlobalIndex(Repository repository, MetaModel metaModel) {
     this(repository, metaModel, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).build()));
@@ -71,162 +117,650 @@ public class GlobalIndex extends Index {
 
   public GlobalIndex(Repository repository, MetaModel metaModel, ExecutorService executorService) {
     super(repository, metaModel, executorService);
-
+    changeLog = new IndexChangeLog(repository.getPath().resolve(INDEX_FOLDER), getMapper());
   }
 
   @Override
   public void addEntry(SessionEntry sessionEntry) {
-    IndexElement element = new IndexElement(repository, sessionEntry.getCompletePath(), sessionEntry.getId(), sessionEntry.getNaturalId(), sessionEntry.getObject().getClass());
-    idToElement.put(element.getId(), element);
-    if (element.hasNaturalId()) {
-      naturalIdToElement.put(element.getNaturalId(), element);
-    }
-    @SuppressWarnings("unchecked")
-    Set<Query<Object, Object>> queries = (Set) sessionEntry.getEntityDescriptor().getQueries();
-    for (Query<Object, Object> query : queries) {
-      Object value = query.getValue(sessionEntry.getObject());
-      ConcurrentHashMap<IndexElement, Optional<Object>> map = queryElements.computeIfAbsent(query, q -> new ConcurrentHashMap<>());
-      map.put(element, Optional.ofNullable(value));
+    IndexElement element = createElement(sessionEntry);
+    Map<Query<?, ?>, Optional<Object>> values = getQueryValues(sessionEntry.getEntityDescriptor(), sessionEntry.getObject());
+    synchronized (changeLog) {
+      long sequence = nextSequence(true);
+      element.setSequence(sequence);
+      sessionEntry.setIndexSequence(sequence);
+      applyPut(element, values);
+      changeLog.append(IndexChangeLog.Change.put(element, values));
     }
+    changeApplied();
+  }
+
+  /**
+   * Adds an element without writing it to the change log, the element was created from its file.
+   */
+  @Override
+  public void addRebuiltEntry(SessionEntry sessionEntry) {
+    IndexElement element = createElement(sessionEntry);
+    element.setSequence(nextSequence(false));
+    applyPut(element, getQueryValues(sessionEntry.getEntityDescriptor(), sessionEntry.getObject()));
+    pendingChanges.incrementAndGet();
+    log.trace("Created index element {}", element);
+  }
+
+  protected IndexElement createElement(SessionEntry sessionEntry) {
+    IndexElement element = new IndexElement(repository, sessionEntry.getCompletePath(), sessionEntry.getId(), sessionEntry.getNaturalId(), sessionEntry.getObject().getClass());
+    element.setMd5Sum(sessionEntry.getMd5());
+    readFileAttributes(element);
+    return element;
   }
 
   @Override
   public void updateEntry(SessionEntry sessionEntry) {
-    removeEntry(sessionEntry);
-    addEntry(sessionEntry);
+    synchronized (changeLog) {
+      remove(sessionEntry.getId(), false);
+      addEntry(sessionEntry);
+    }
   }
 
   @Override
   public void removeEntry(SessionEntry sessionEntry) {
-    IndexElement element = new IndexElement(repository, sessionEntry.getCompletePath(), sessionEntry.getId(), sessionEntry.getNaturalId(), sessionEntry.getObject().getClass());
-    idToElement.remove(element.getId());
-    if (element.hasNaturalId()) {
-      naturalIdToElement.remove(element.getNaturalId());
+    sessionEntry.setIndexSequence(remove(sessionEntry.getId(), true));
+  }
+
+  /**
+   * The removal is not tracked for the lucene index, it has to be removed there separately.
+   */
+  @Override
+  public void removeEntry(String entryId) {
+    remove(entryId, false);
+  }
+
+  /**
+   * @return sequence of the removal or 0 if there was no element with the id
+   */
+  protected long remove(String entryId, boolean trackForLucene) {
+    long sequence;
+    synchronized (changeLog) {
+      ElementId id = ElementId.parse(entryId);
+      IndexElement element = id == null ? null : idToElement.get(id);
+      if (element == null) {
+        return 0;
+      }
+      sequence = nextSequence(trackForLucene);
+      applyRemove(element);
+      changeLog.append(IndexChangeLog.Change.remove(element.getId(), sequence));
     }
+    changeApplied();
+    return sequence;
+  }
+
+  /**
+   * Removes an element without writing it to the change log, used when elements are validated against the files.
+   */
+  protected void removeElement(IndexElement element) {
+    nextSequence(false);
+    applyRemove(element);
+    pendingChanges.incrementAndGet();
+  }
+
+  /**
+   * @param trackForLucene true if the change is applied to the lucene index afterwards and acknowledged via {@link #acknowledge(long)}
+   */
+  protected long nextSequence(boolean trackForLucene) {
+    synchronized (sequenceLock) {
+      long next = sequence.incrementAndGet();
+      if (trackForLucene) {
+        luceneBacklog.add(next);
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Forces the changes appended to the change log to disk, called once per session commit and before lucene records a sequence.
+   */
+  public void syncChangeLog() {
+    changeLog.sync();
+  }
+
+  /**
+   * Called after the change with the given sequence was applied to the lucene index.
+   */
+  public void acknowledge(long sequence) {
+    luceneBacklog.remove(sequence);
+  }
+
+  /**
+   * @return sequence of the last change
+   */
+  public long getSequence() {
+    return sequence.get();
+  }
+
+  /**
+   * @return the highest sequence up to which all changes were applied to the lucene index
+   */
+  public long getAcknowledgedSequence() {
+    synchronized (sequenceLock) {
+      return luceneBacklog.isEmpty() ? sequence.get() : luceneBacklog.first() - 1;
+    }
+  }
+
+  /**
+   * @return all elements changed after the given sequence
+   */
+  public Collection<IndexElement> getChangedSince(long sequence) {
+    return idToElement.values().stream().filter(element -> element.getSequence() > sequence).collect(Collectors.toList());
+  }
+
+  protected Map<Query<?, ?>, Optional<Object>> getQueryValues(EntityDescriptor descriptor, Object entity) {
+    HashMap<Query<?, ?>, Optional<Object>> retval = new HashMap<>();
     @SuppressWarnings("unchecked")
-    Set<Query<Object, Object>> queries = (Set) sessionEntry.getEntityDescriptor().getQueries();
+    Set<Query<Object, Object>> queries = (Set) descriptor.getQueries();
     for (Query<Object, Object> query : queries) {
-      ConcurrentHashMap<IndexElement, Optional<Object>> map = queryElements.get(query);
-      if (map != null) {
-        map.remove(element);
+      retval.put(query, Optional.ofNullable(query.getValue(entity)));
+    }
+    return retval;
+  }
+
+  protected void applyPut(IndexElement element, Map<Query<?, ?>, Optional<Object>> values) {
+    putElement(element);
+    for (Map.Entry<Query<?, ?>, Optional<Object>> entry : values.entrySet()) {
+      Object value = QueryValues.wrap(entry.getValue());
+      Object old = getQueryMap(entry.getKey()).put(element, value);
+      QueryValueIndex valueIndex = valueIndexes.get(entry.getKey());
+      if (old != null) {
+        valueIndex.remove(element, old);
+      }
+      valueIndex.put(element, value);
+    }
+  }
+
+  /**
+   * Decodes a pending query column of a binary snapshot on first access.
+   * The value index of the query is created together with the query map.
+   */
+  protected ConcurrentHashMap<IndexElement, Object> getQueryMap(Query<?, ?> query) {
+    return queryElements.computeIfAbsent(query, q -> {
+      Callable<ConcurrentHashMap<IndexElement, Object>> pending = pendingQueryColumns.remove(q);
+      ConcurrentHashMap<IndexElement, Object> map;
+      try {
+        map = pending == null ? new ConcurrentHashMap<>() : pending.call();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      valueIndexes.put(q, new QueryValueIndex(map));
+      return map;
+    });
+  }
+
+  /**
+   * Puts the element into the id, natural id and class lookups and removes a replaced element from them.
+   * The id filters are read after the element was added to the map, so a concurrently rebuilt filter contains it either from the map or from here.
+   */
+  protected void putElement(IndexElement element) {
+    IndexElement old = idToElement.put(element.getElementId(), element);
+    IdFilter rebuilding = rebuildingIdFilter;
+    if (rebuilding != null) {
+      rebuilding.put(element);
+    }
+    IdFilter filter = idFilter;
+    if (filter != null) {
+      filter.put(element);
+    }
+    if (old != null && old != element) {
+      if (old.hasNaturalId()) {
+        naturalIdToElement.remove(old.getNaturalId(), old);
+      }
+      getPartition(old.getEntityClass()).remove(old);
+    }
+    if (element.hasNaturalId()) {
+      naturalIdToElement.put(element.getNaturalId(), element);
+    }
+    getPartition(element.getEntityClass()).add(element);
+  }
+
+  protected Set<IndexElement> getPartition(Class<?> entityClass) {
+    return classToElements.computeIfAbsent(entityClass, c -> ConcurrentHashMap.newKeySet());
+  }
+
+  protected void applyRemove(IndexElement element) {
+    idToElement.remove(element.getElementId());
+    IdFilter filter = idFilter;
+    if (filter != null) {
+      filter.removed();
+    }
+    if (element.hasNaturalId()) {
+      naturalIdToElement.remove(element.getNaturalId());
+    }
+    getPartition(element.getEntityClass()).remove(element);
+    for (Map.Entry<Query<?, ?>, ConcurrentHashMap<IndexElement, Object>> entry : queryElements.entrySet()) {
+      Object old = entry.getValue().remove(element);
+      if (old != null) {
+        valueIndexes.get(entry.getKey()).remove(element, old);
+      }
+    }
+  }
+
+  protected void applyChange(IndexChangeLog.Change change, Map<String, Query<?, ?>> queryCache) {
+    sequence.accumulateAndGet(change.getSequence(), Math::max);
+    if (change.getOperation() == IndexChangeLog.Operation.PUT) {
+      IndexElement element = change.getElement();
+      element.setRepository(repository);
+      IndexElement old = idToElement.get(element.getElementId());
+      if (old != null) {
+        applyRemove(old);
+      }
+      HashMap<Query<?, ?>, Optional<Object>> values = new HashMap<>();
+      for (IndexChangeLog.QueryValue value : change.getValues()) {
+        Query<?, ?> query = queryCache.computeIfAbsent(value.getOwner().getName() + "#" + value.getQueryName(), k -> metaModel.getQuery(value.getOwner(), value.getQueryName()));
+        if (query != null) {
+          values.put(query, value.getValue());
+        }
+      }
+      applyPut(element, values);
+    } else {
+      ElementId id = ElementId.parse(change.getId());
+      IndexElement element = id == null ? null : idToElement.get(id);
+      if (element != null) {
+        applyRemove(element);
+      }
+    }
+  }
+
+  protected void changeApplied() {
+    if (pendingChanges.incrementAndGet() >= checkpointThreshold) {
+      requestCheckpoint();
+    }
+  }
+
+  /**
+   * Schedules an asynchronous checkpoint if none is pending yet.
+   */
+  public void requestCheckpoint() {
+    if (checkpointRequested.compareAndSet(false, true)) {
+      try {
+        checkpointExecutor.submit(() -> {
+          checkpointRequested.set(false);
+          checkpoint();
+        });
+      } catch (RejectedExecutionException e) {
+        checkpointRequested.set(false);
+        log.debug("Checkpoint executor already shut down, not scheduling checkpoint for {}", repository.getName());
+      }
+    }
+  }
+
+  /**
+   * Periodically writes a checkpoint if there are pending changes.
+   */
+  public void scheduleCheckpoints(long interval, TimeUnit unit) {
+    ScheduledFuture<?> old = scheduledCheckpoints;
+    if (old != null) {
+      old.cancel(false);
+    }
+    scheduledCheckpoints = checkpointExecutor.scheduleWithFixedDelay(() -> {
+      if (hasPendingChanges()) {
+        checkpoint();
       }
+    }, interval, interval, unit);
+  }
+
+  public void setSnapshotFormat(SnapshotFormat snapshotFormat) {
+    this.snapshotFormat = snapshotFormat;
+  }
+
+  /**
+   * Enables a bloom filter over ids and natural ids which is persisted with the checkpoints. Needs to be set before the index is loaded.
+   */
+  public void setIdFilterEnabled(boolean idFilterEnabled) {
+    this.idFilterEnabled = idFilterEnabled;
+  }
+
+  /**
+   * Replaces the id filter with one sized for the current elements.
+   * The new filter is only used after it was filled, elements added meanwhile are put into the old and the new filter by {@link #putElement(IndexElement)}.
+   */
+  protected synchronized IdFilter rebuildIdFilter() {
+    IdFilter filter = new IdFilter(idToElement.size() * 2);
+    rebuildingIdFilter = filter;
+    idToElement.values().forEach(filter::put);
+    idFilter = filter;
+    rebuildingIdFilter = null;
+    return filter;
+  }
+
+  public void setCheckpointThreshold(long checkpointThreshold) {
+    this.checkpointThreshold = checkpointThreshold;
+  }
+
+  public boolean hasPendingChanges() {
+    return pendingChanges.get() > 0;
+  }
+
+  private void checkpoint() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      log.error("Could not write checkpoint of index {}", repository.getName(), e);
     }
   }
 
   public IndexElement getById(String id) {
+    ElementId elementId = ElementId.parse(id);
+    return elementId == null ? null : getById(elementId);
+  }
+
+  public IndexElement getById(ElementId id) {
+    IdFilter filter = idFilter;
+    if (filter != null && !filter.mightContain(id)) {
+      return null;
+    }
     return idToElement.get(id);
   }
 
   public IndexElement getByNaturalId(NaturalId id) {
+    IdFilter filter = idFilter;
+    if (filter != null && !filter.mightContain(id)) {
+      return null;
+    }
     return naturalIdToElement.get(id);
   }
 
+  /**
+   * @return all elements of exactly the given class
+   */
   public Collection<IndexElement> getAllOf(Class<?> entity) {
-    return idToElement.values().stream().filter(v -> v.getEntityClass().equals(entity)).collect(Collectors.toSet());
+    Set<IndexElement> partition = classToElements.get(entity);
+    return partition == null ? new HashSet<>() : new HashSet<>(partition);
+  }
+
+  /**
+   * @return all elements of the given class and its subclasses
+   */
+  public Collection<IndexElement> getAllOfType(Class<?> type) {
+    ArrayList<IndexElement> retval = new ArrayList<>();
+    classToElements.forEach((entityClass, partition) -> {
+      if (type.isAssignableFrom(entityClass)) {
+        retval.addAll(partition);
+      }
+    });
+    return retval;
+  }
+
+  public int getCount(Class<?> entity) {
+    Set<IndexElement> partition = classToElements.get(entity);
+    return partition == null ? 0 : partition.size();
+  }
+
+  public int getCountOfType(Class<?> type) {
+    int count = 0;
+    for (Map.Entry<Class<?>, Set<IndexElement>> entry : classToElements.entrySet()) {
+      if (type.isAssignableFrom(entry.getKey())) {
+        count += entry.getValue().size();
+      }
+    }
+    return count;
   }
 
   public Collection<String> getAllIds() {
-    return Collections.unmodifiableCollection(idToElement.keySet());
+    return idToElement.keySet().stream().map(ElementId::toString).collect(Collectors.toList());
   }
 
   @Override
   public void recreate() {
-    Set<Path> allFiles = repository.getAllFilesInRepository();
-
-    Map<EntityDescriptor, Set<Path>> discovered = mapToEntityDescriptors(allFiles);
-    if (log.isDebugEnabled()) {
-      discovered.entrySet().forEach(e -> log.debug("For class {} found {} elements", e.getKey().getEntityClass().getSimpleName(), e.getValue().size()));
-    }
+    new IndexRebuild(repository, metaModel, executorService, this).rebuild();
+  }
 
+  /**
+   * Compares the loaded index against the file system and only parses the files that were added or changed since the index was written.
+   * Elements whose file vanished are removed.
+   * Changes are detected via last modification time and file size.
+   */
+  public void validate() {
+    TimeProfiler profiler = new TimeProfiler("Index validation").start();
     DefaultIdGenerator idGenerator = new DefaultIdGenerator();
 
-    List<Future<IndexElement>> futures = discovered.entrySet().stream().map(entry -> {
-      EntityDescriptor descriptor = entry.getKey();
-      Set<Path> paths = entry.getValue();
-      ArrayList<Future<IndexElement>> retval = new ArrayList<>();
-      for (Path path : paths) {
-        Future<IndexElement> future = executorService.submit(() -> {
-          String id = idGenerator.getSha1Hash(repository.getPath(), path);
-          byte[] md5 = readMd5(path);
-          long lastModified = getLastModified(path);
-          Object loaded = descriptor.getPersister().load(repository, descriptor, path, new HashMap<>());
-          Serializable naturalId = descriptor.getNaturalId(loaded);
-          IndexElement indexElement = new IndexElement(repository, path, id, naturalId == null ? null : new NaturalId(loaded.getClass(), naturalId), descriptor.getEntityClass());
-          indexElement.setMd5Sum(md5).setLastModified(lastModified);
-          log.trace("Created index element {}", indexElement);
-          return indexElement;
-        });
-        retval.add(future);
+    Map<ElementId, IndexElement> vanished = new ConcurrentHashMap<>(idToElement);
+    Set<Path> changed = ConcurrentHashMap.newKeySet();
+    AtomicLong fileCount = new AtomicLong();
+    repository.walkFilesInRepository((path, attributes) -> {
+      fileCount.incrementAndGet();
+      ElementId id = ElementId.of(idGenerator.getSha1Hash(repository.getPath(), path));
+      IndexElement element = vanished.remove(id);
+      if (element == null) {
+        changed.add(path);
+      } else if (!element.isUpToDate(attributes.lastModifiedTime().toMillis(), attributes.size())) {
+        log.debug("Found changed file {}", path);
+        removeElement(element);
+        changed.add(path);
       }
-      return retval;
-    }).reduce(new ArrayList<>(), (l1, l2) -> {
-      l1.addAll(l2);
-      return l1;
     });
-
-    for (Future<IndexElement> future : futures) {
-      try {
-        IndexElement indexElement = future.get();
-        this.idToElement.put(indexElement.getId(), indexElement);
-        if (indexElement.getNaturalId() != null) {
-          this.naturalIdToElement.put(indexElement.getNaturalId(), indexElement);
-        }
-      } catch (Exception e) {
-        log.error("Could not retrieve index element", e);
-      }
-
+    for (IndexElement element : vanished.values()) {
+      log.debug("Removing vanished element {}", element);
+      removeElement(element);
     }
+    new IndexRebuild(repository, metaModel, executorService, this).rebuild(changed);
+    profiler.stop().logDebug(log);
+    log.info("Validated index of {}: {} files, {} new or changed, {} vanished", repository.getName(), fileCount.get(), changed.size(), vanished.size());
   }
 
-  protected long getLastModified(Path path) {
+  protected void readFileAttributes(IndexElement element) {
+    Path path = element.getPathInRepository();
     try {
-      return Files.getLastModifiedTime(path).toMillis();
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      element.setLastModified(attributes.lastModifiedTime().toMillis()).setSize(attributes.size());
     } catch (IOException e) {
-      log.error("Could not get last modification time from {}", path, e);
-      return 0;
+      log.error("Could not read file attributes of {}", path, e);
     }
   }
 
-  protected byte[] readMd5(Path path) {
-    byte[] md5 = new byte[0];
-    try (FileInputStream stream = new FileInputStream(path.toFile())) {
-      try (BufferedInputStream buffered = new BufferedInputStream(stream)) {
-        md5 = DigestUtils.md5(buffered);
+  @Override
+  public void close() {
+    checkpointExecutor.shutdown();
+    try {
+      checkpointExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (hasPendingChanges() || !hasSnapshot()) {
+      checkpoint();
+    }
+    changeLog.close();
+  }
 
+  /**
+   * Writes a checkpoint of the complete index into the snapshot files.
+   * The change log is rotated while the index is copied and deleted after the snapshot files were written.
+   */
+  public void flush() {
+    synchronized (checkpointLock) {
+      Path folder = repository.getPath().resolve(INDEX_FOLDER);
+      if (!Files.exists(folder)) {
+        try {
+          Files.createDirectories(folder);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
       }
-    } catch (IOException e) {
-      log.error("Could not get md5 of {}", path, e);
+      TimeProfiler profiler = new TimeProfiler("Index checkpoint").start();
+      SnapshotFormat format = snapshotFormat;
+      ArrayList<IndexElement> elements;
+      HashMap<Query<?, ?>, HashMap<IndexElement, Object>> queries = new HashMap<>();
+      long flushed;
+      synchronized (changeLog) {
+        new ArrayList<>(pendingQueryColumns.keySet()).forEach(this::getQueryMap);
+        elements = new ArrayList<>(idToElement.values());
+        queryElements.forEach((query, values) -> queries.put(query, new HashMap<>(values)));
+        changeLog.rotate();
+        flushed = pendingChanges.getAndSet(0);
+      }
+      boolean written = false;
+      try {
+        writeSequence(folder.resolve(SEQUENCE_FILE));
+        writeIdFilter(folder.resolve(ID_FILTER_FILE));
+        if (format == SnapshotFormat.BINARY) {
+          writeBinarySnapshot(folder.resolve(BINARY_FILE), elements, queries);
+          Files.deleteIfExists(folder.resolve(INDEX_FILE));
+          Files.deleteIfExists(folder.resolve(QUERY_FILE));
+        } else {
+          final ObjectMapper mapper = getMapper();
+          List<QueryWrapper> wrappers = queries.entrySet().stream().map(entry -> new QueryWrapper(entry.getKey().getOwnerClass(), entry.getKey().getName(), entry.getValue())).collect(Collectors.toList());
+          writeSnapshotFile(mapper, folder.resolve(INDEX_FILE), elements);
+          writeSnapshotFile(mapper, folder.resolve(QUERY_FILE), wrappers);
+          WindowsSafeFileAccess.exec(() -> Files.deleteIfExists(folder.resolve(BINARY_FILE)));
+        }
+        FileSync.forceDirectory(folder);
+        changeLog.sync();//the rotated log may only vanish once the snapshot and the changes appended meanwhile are durable
+        changeLog.deleteRotated();
+        written = true;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } finally {
+        if (!written) {//retried by the next checkpoint
+          pendingChanges.addAndGet(flushed);
+        }
+      }
+      profiler.stop().logDebug(log);
     }
-    return md5;
   }
 
-  @Override
-  public void close() {
+  protected void writeSnapshotFile(ObjectMapper mapper, Path target, Object value) throws IOException {
+    Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    mapper.writeValue(temp.toFile(), value);
+    FileSync.force(temp);
+    WindowsSafeFileAccess.exec(() -> Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+  }
 
+  /**
+   * The sequence is read after the elements were copied, so it is never lower than the one of the snapshot.
+   */
+  protected void writeSequence(Path target) throws IOException {
+    Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    Files.write(temp, String.valueOf(sequence.get()).getBytes(StandardCharsets.UTF_8));
+    FileSync.force(temp);
+    WindowsSafeFileAccess.exec(() -> Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
   }
 
-  public void flush() {
-    Path folder = repository.getPath().resolve(INDEX_FOLDER);
-    if (!Files.exists(folder)) {
+  /**
+   * Without a stored sequence the highest sequence of all elements is used.
+   */
+  protected void loadSequence() {
+    Path file = repository.getPath().resolve(INDEX_FOLDER).resolve(SEQUENCE_FILE);
+    long stored = 0;
+    if (Files.exists(file)) {
       try {
-        Files.createDirectories(folder);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+        stored = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+      } catch (IOException | NumberFormatException e) {
+        log.warn("Could not read index sequence {}", file, e);
       }
     }
-    final ObjectMapper mapper = getMapper();
-    ArrayList<IndexElement> elements = new ArrayList<>(idToElement.values());
-    try {
-      mapper.writeValue(repository.getPath().resolve(INDEX_FOLDER).resolve(INDEX_FILE).toFile(), elements);
+    long max = idToElement.values().stream().mapToLong(IndexElement::getSequence).max().orElse(0);
+    sequence.set(Math.max(stored, max));
+  }
 
-      List<QueryWrapper> wrappers = queryElements.entrySet().stream().map(entry -> new QueryWrapper(entry.getKey().getOwnerClass(), entry.getKey().getName(), entry.getValue())).collect(Collectors.toList());
-      mapper.writeValue(repository.getPath().resolve(INDEX_FOLDER).resolve(QUERY_FILE).toFile(), wrappers);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  /**
+   * The filter is written before the snapshot files.
+   * It is built from the current elements, so it covers the snapshot and all changes replayed on top of it.
+   */
+  protected void writeIdFilter(Path target) throws IOException {
+    IdFilter filter = idFilter;
+    if (filter == null) {
+      Files.deleteIfExists(target);
+      return;
+    }
+    if (filter.needsRebuild()) {
+      filter = rebuildIdFilter();
     }
+    Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    filter.write(temp);
+    FileSync.force(temp);
+    WindowsSafeFileAccess.exec(() -> Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+  }
+
+  protected void writeBinarySnapshot(Path target, List<IndexElement> elements, Map<Query<?, ?>, ? extends Map<IndexElement, Object>> queries) throws IOException {
+    Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    BinaryIndexSnapshot.write(temp, repository.getPath(), elements, queries, getMapper());
+    FileSync.force(temp);
+    WindowsSafeFileAccess.exec(() -> Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+  }
+
+  protected boolean hasSnapshot() {
+    Path folder = repository.getPath().resolve(INDEX_FOLDER);
+    return Files.exists(folder.resolve(BINARY_FILE)) || Files.exists(folder.resolve(INDEX_FILE));
   }
 
+  /**
+   * Loads the snapshot files and replays the change log on top.
+   * A binary snapshot is preferred over the json files, its query columns are decoded on first access.
+   *
+   * @return true if the snapshot files were present
+   */
   public boolean load() {
+    boolean loaded;
+    Path binaryPath = repository.getPath().resolve(INDEX_FOLDER).resolve(BINARY_FILE);
+    if (Files.exists(binaryPath)) {
+      loaded = loadBinary(binaryPath);
+    } else {
+      loaded = loadJson();
+    }
+    if (idFilterEnabled) {
+      loadIdFilter(loaded);
+    }
+    if (loaded) {
+      loadSequence();
+      HashMap<String, Query<?, ?>> queryCache = new HashMap<>();
+      int replayed = changeLog.replay(change -> applyChange(change, queryCache));
+      pendingChanges.addAndGet(replayed);
+      log.debug("Replayed {} changes of {}", replayed, repository.getName());
+    }
+    return loaded;
+  }
+
+  /**
+   * Uses the stored filter if the snapshot was loaded, otherwise a new one is created for the loaded elements.
+   */
+  protected void loadIdFilter(boolean snapshotLoaded) {
+    Path filterPath = repository.getPath().resolve(INDEX_FOLDER).resolve(ID_FILTER_FILE);
+    IdFilter filter = snapshotLoaded && Files.exists(filterPath) ? IdFilter.read(filterPath) : null;
+    if (filter == null) {
+      rebuildIdFilter();
+    } else {
+      idFilter = filter;
+    }
+  }
+
+  protected boolean loadBinary(Path filePath) {
+    TimeProfiler profiler = new TimeProfiler("Binary index load").start();
+    try {
+      BinaryIndexSnapshot.Reader reader = BinaryIndexSnapshot.open(filePath, getMapper());
+      List<IndexElement> elements = reader.readElements(repository);
+      for (IndexElement element : elements) {
+        if (element != null) {
+          putElement(element);
+        }
+      }
+      for (BinaryIndexSnapshot.Reader.Column column : reader.getColumns()) {
+        Query<?, ?> query = column.getOwner() == null ? null : metaModel.getQuery(column.getOwner(), column.getQueryName());
+        if (query == null) {
+          log.warn("Ignoring unknown query {} of {}", column.getQueryName(), column.getOwner());
+          continue;
+        }
+        //elements removed or replaced before the column is decoded are skipped
+        pendingQueryColumns.put(query, () -> column.read(elements, element -> idToElement.get(element.getElementId()) == element));
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("Could not load binary index snapshot {}", filePath, e);
+      idToElement.clear();
+      naturalIdToElement.clear();
+      classToElements.clear();
+      pendingQueryColumns.clear();
+      return false;
+    }
+    profiler.stop().logDebug(log);
+    return true;
+  }
+
+  protected boolean loadJson() {
     final ObjectMapper mapper = getMapper();
     int loaded = 0;
 
@@ -237,12 +771,7 @@ public class GlobalIndex extends Index {
         ArrayList<IndexElement> values = mapper.readValue(filePath.toFile(), ArrayList.class);
         for (IndexElement element : values) {
           element.setRepository(repository);
-          String id = element.getId();
-          Serializable naturalId = element.getNaturalId();
-          idToElement.put(id, element);
-          if (naturalId != null) {
-            naturalIdToElement.put(new NaturalId(element.getEntityClass(), naturalId), element);
-          }
+          putElement(element);
         }
         loaded++;
       } catch (IOException e) {
@@ -257,11 +786,19 @@ public class GlobalIndex extends Index {
         List<QueryWrapper> wrappers = mapper.readValue(filePath.toFile(), List.class);
         for (QueryWrapper wrapper : wrappers) {
           Query<?, ?> query = metaModel.getQuery(wrapper.owner, wrapper.queryName);
-          ConcurrentHashMap<IndexElement, Optional<Object>> value = new ConcurrentHashMap<>();
-          queryElements.put(query, value);
+          if (query == null) {
+            log.warn("Ignoring unknown query {} of {}", wrapper.queryName, wrapper.owner);
+            continue;
+          }
+          ConcurrentHashMap<IndexElement, Object> value = new ConcurrentHashMap<>();
           for (Map.Entry<String, Optional<Object>> entry : wrapper.elements.entrySet()) {
-            value.put(idToElement.get(entry.getKey()), entry.getValue());
+            IndexElement element = getById(entry.getKey());
+            if (element != null) {
+              value.put(element, QueryValues.wrap(entry.getValue()));
+            }
           }
+          valueIndexes.put(query, new QueryValueIndex(value));
+          queryElements.put(query, value);
         }
         loaded++;
       } catch (IOException e) {
@@ -282,9 +819,16 @@ public class GlobalIndex extends Index {
   }
 
   public <E, V> Map<IndexElement, Optional<V>> getQueryElements(Query<E, V> query) {
-    @SuppressWarnings("unchecked")
-    ConcurrentHashMap<IndexElement, Optional<V>> retval = (ConcurrentHashMap) queryElements.get(query);
-    return retval == null ? new ConcurrentHashMap<>() : retval;
+    ConcurrentHashMap<IndexElement, Object> values = pendingQueryColumns.containsKey(query) ? getQueryMap(query) : queryElements.get(query);
+    return values == null ? new ConcurrentHashMap<>() : QueryValues.asOptionalMap(values);
+  }
+
+  /**
+   * @return the sorted and inverted index of all values of the given query
+   */
+  public QueryValueIndex getValueIndex(Query<?, ?> query) {
+    getQueryMap(query);
+    return valueIndexes.get(query);
   }
 
   static class QueryWrapper {
@@ -296,11 +840,11 @@ public class GlobalIndex extends Index {
       //json
     }
 
-    public QueryWrapper(Class<?> owner, String queryName, ConcurrentHashMap<IndexElement, Optional<Object>> originalElements) {
+    public QueryWrapper(Class<?> owner, String queryName, Map<IndexElement, Object> originalElements) {
       this.owner = owner;
       this.queryName = queryName;
-      for (Map.Entry<IndexElement, Optional<Object>> entry : originalElements.entrySet()) {
-        elements.put(entry.getKey().getId(), entry.getValue());
+      for (Map.Entry<IndexElement, Object> entry : originalElements.entrySet()) {
+        elements.put(entry.getKey().getId(), QueryValues.unwrap(entry.getValue()));
       }
     }
   }
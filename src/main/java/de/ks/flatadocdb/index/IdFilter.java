@@ -0,0 +1,199 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+import de.ks.flatadocdb.session.NaturalId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bloom filters over the ids and natural ids of the {@link GlobalIndex}.
+ * A negative answer means the element is definitely absent, a positive one has to be checked against the index.
+ * Removed elements stay in the filter until it is rebuilt at a checkpoint.
+ * <p>
+ * The filter is stored on disk, so only natural ids whose keys have a stable encoding across jvm runs are filtered,
+ * the others always might be contained.
+ */
+@ThreadSafe
+public class IdFilter {
+  private static final Logger log = LoggerFactory.getLogger(IdFilter.class);
+  private static final int MAGIC = 0x49444631;//IDF1
+  public static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+  public static final int MIN_EXPECTED_INSERTIONS = 1000;
+
+  private final BloomFilter<ElementId> ids;
+  private final BloomFilter<NaturalId> naturalIds;
+  private final int expectedInsertions;
+  private final AtomicLong insertions = new AtomicLong();
+  private final AtomicLong removals = new AtomicLong();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  public IdFilter(int expectedInsertions) {
+    this.expectedInsertions = Math.max(MIN_EXPECTED_INSERTIONS, expectedInsertions);
+    ids = BloomFilter.create(IdFunnel.INSTANCE, this.expectedInsertions, FALSE_POSITIVE_PROBABILITY);
+    naturalIds = BloomFilter.create(NaturalIdFunnel.INSTANCE, this.expectedInsertions, FALSE_POSITIVE_PROBABILITY);
+  }
+
+  private IdFilter(int expectedInsertions, BloomFilter<ElementId> ids, BloomFilter<NaturalId> naturalIds, long insertions, long removals) {
+    this.expectedInsertions = expectedInsertions;
+    this.ids = ids;
+    this.naturalIds = naturalIds;
+    this.insertions.set(insertions);
+    this.removals.set(removals);
+  }
+
+  public void put(IndexElement element) {
+    lock.writeLock().lock();
+    try {
+      ids.put(element.getElementId());
+      if (element.hasNaturalId() && hasStableKey(element.getNaturalId())) {
+        naturalIds.put(element.getNaturalId());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    insertions.incrementAndGet();
+  }
+
+  /**
+   * Only counted, bloom filters can't remove elements.
+   */
+  public void removed() {
+    removals.incrementAndGet();
+  }
+
+  public boolean mightContain(ElementId id) {
+    lock.readLock().lock();
+    try {
+      return ids.mightContain(id);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean mightContain(NaturalId naturalId) {
+    if (!hasStableKey(naturalId)) {
+      return true;
+    }
+    lock.readLock().lock();
+    try {
+      return naturalIds.mightContain(naturalId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the filter is overfilled or contains too many removed elements
+   */
+  public boolean needsRebuild() {
+    return insertions.get() > expectedInsertions || removals.get() > expectedInsertions / 4;
+  }
+
+  public void write(Path file) throws IOException {
+    lock.readLock().lock();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(expectedInsertions);
+      out.writeLong(insertions.get());
+      out.writeLong(removals.get());
+      ids.writeTo(out);
+      naturalIds.writeTo(out);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the stored filter or null if it could not be read
+   */
+  public static IdFilter read(Path file) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        log.warn("Ignoring id filter {} of unknown format", file);
+        return null;
+      }
+      int expectedInsertions = in.readInt();
+      long insertions = in.readLong();
+      long removals = in.readLong();
+      BloomFilter<ElementId> ids = BloomFilter.readFrom(in, IdFunnel.INSTANCE);
+      BloomFilter<NaturalId> naturalIds = BloomFilter.readFrom(in, NaturalIdFunnel.INSTANCE);
+      return new IdFilter(expectedInsertions, ids, naturalIds, insertions, removals);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not read id filter {}", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Keys whose encoding only depends on their value, other hash codes might change with every jvm run.
+   */
+  static boolean hasStableKey(NaturalId naturalId) {
+    Object key = naturalId.getKey();
+    return key instanceof String || key instanceof Enum || key instanceof Number || key instanceof Character || key instanceof Boolean//
+      || key instanceof LocalDate || key instanceof LocalTime || key instanceof LocalDateTime || key instanceof UUID;
+  }
+
+  enum IdFunnel implements Funnel<ElementId> {
+    INSTANCE;
+
+    @Override
+    public void funnel(ElementId from, PrimitiveSink into) {
+      into.putBytes(from.toBytes());
+    }
+  }
+
+  /**
+   * Hashes the same representation {@link NaturalId#equals(Object)} compares, independent of the identity hash codes of classes and enums.
+   * Only used for keys with {@link #hasStableKey(NaturalId)}.
+   */
+  enum NaturalIdFunnel implements Funnel<NaturalId> {
+    INSTANCE;
+
+    @Override
+    public void funnel(NaturalId from, PrimitiveSink into) {
+      into.putString(from.getClazz().getName(), StandardCharsets.UTF_8);
+      Object key = from.getKey();
+      if (key instanceof String) {
+        into.putString(((String) key).toLowerCase(Locale.ROOT), StandardCharsets.UTF_8);
+      } else if (key instanceof Enum) {
+        into.putString(((Enum<?>) key).name(), StandardCharsets.UTF_8);
+      } else {
+        into.putString(key.getClass().getName(), StandardCharsets.UTF_8);
+        into.putString(key.toString(), StandardCharsets.UTF_8);
+      }
+    }
+  }
+}
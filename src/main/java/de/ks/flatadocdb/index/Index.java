@@ -17,25 +17,15 @@
 package de.ks.flatadocdb.index;
 
 import de.ks.flatadocdb.Repository;
-import de.ks.flatadocdb.ifc.EntityPersister;
-import de.ks.flatadocdb.metamodel.EntityDescriptor;
 import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.session.SessionEntry;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.nio.file.Path;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 /**
  * General interface class for indexes
  */
 public abstract class Index {
-  private static final Logger log = LoggerFactory.getLogger(Index.class);
-
   protected final Repository repository;
   protected final MetaModel metaModel;
   protected final ExecutorService executorService;
@@ -52,42 +42,20 @@ public abstract class Index {
 
   public abstract void updateEntry(SessionEntry entry);
 
-  public abstract void recreate();
-
-  public abstract void close();
-
-  protected Map<EntityDescriptor, Set<Path>> mapToEntityDescriptors(Set<Path> allFiles) {
-    Map<EntityDescriptor, Set<Path>> discovered = new ConcurrentHashMap<>();
-    List<EntityDescriptor> entities = metaModel.getEntities();
-    entities.forEach(e -> discovered.put(e, new HashSet<>()));
-
-    Map<Path, Future<?>> futures = new LinkedHashMap<>();
-    for (Path file : allFiles) {
-      futures.put(file, parseSingleFile(discovered, entities, file));
-    }
-
-    futures.forEach((p, f) -> {
-      try {
-        f.get();
-      } catch (Exception e) {
-        log.error("Could not  determine responsible entity descriptor for {}", p, e);
-      }
-    });
-    return discovered;
+  /**
+   * Removes the entry with the given id, used when its file was deleted outside of a session.
+   */
+  public abstract void removeEntry(String id);
+
+  /**
+   * Adds an entry that was loaded from the file system by an {@link IndexRebuild}.
+   * Might be called concurrently.
+   */
+  public void addRebuiltEntry(SessionEntry entry) {
+    addEntry(entry);
   }
 
-  protected Future<?> parseSingleFile(Map<EntityDescriptor, Set<Path>> discovered, List<EntityDescriptor> entities, Path file) {
-    return executorService.submit(() -> {
-      for (EntityDescriptor entityDescriptor : entities) {
-        EntityPersister persister = entityDescriptor.getPersister();
-        if (persister.canParse(file, entityDescriptor)) {
-          discovered.get(entityDescriptor).add(file);
-          log.debug("Found file {} which can be parsed as {}", file, entityDescriptor.getEntityClass().getSimpleName());
-          return;
-        }
-      }
-      log.debug("Could not find any entity descriptor for {}", file);
-    });
-  }
+  public abstract void recreate();
 
+  public abstract void close();
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.ks.flatadocdb.query.Query;
+import de.ks.flatadocdb.util.FileSync;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Append only log of all changes applied to the {@link GlobalIndex} since the last checkpoint.
+ * Every change is written as a single json line.
+ * On a checkpoint the log is rotated, after the snapshot files were written the rotated log is deleted.
+ * When the index is loaded the rotated and the current log are replayed on top of the snapshot.
+ * Appended changes are only forced to disk by {@link #sync()}, which is called once per commit of a session(group commit).
+ */
+@ThreadSafe
+public class IndexChangeLog implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(IndexChangeLog.class);
+  public static final String LOG_FILE = "changes.log";
+  public static final String ROTATED_LOG_FILE = "changes.log.old";
+
+  private final Path folder;
+  private final ObjectMapper mapper;
+  private FileChannel channel;
+  private boolean unsynced;
+
+  public IndexChangeLog(Path folder, ObjectMapper mapper) {
+    this.folder = folder;
+    this.mapper = mapper;
+  }
+
+  public synchronized void append(Change change) {
+    try {
+      byte[] bytes = mapper.writeValueAsBytes(change);
+      ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+      buffer.put(bytes).put((byte) '\n').flip();
+      FileChannel channel = getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      unsynced = true;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Forces all appended changes to disk.
+   */
+  public synchronized void sync() {
+    if (channel != null && unsynced) {
+      try {
+        channel.force(false);
+        unsynced = false;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Moves the current log aside so a checkpoint can be written.
+   * If a rotated log is still present(last checkpoint failed) the current log is appended to it.
+   */
+  public synchronized void rotate() {
+    sync();
+    closeChannel();
+    Path current = folder.resolve(LOG_FILE);
+    Path rotated = folder.resolve(ROTATED_LOG_FILE);
+    if (!Files.exists(current)) {
+      return;
+    }
+    try {
+      if (Files.exists(rotated)) {
+        Files.write(rotated, Files.readAllBytes(current), StandardOpenOption.APPEND);
+        Files.delete(current);
+      } else {
+        Files.move(current, rotated, StandardCopyOption.ATOMIC_MOVE);
+      }
+      FileSync.force(rotated);
+      FileSync.forceDirectory(folder);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void deleteRotated() {
+    try {
+      Files.deleteIfExists(folder.resolve(ROTATED_LOG_FILE));
+      FileSync.forceDirectory(folder);
+    } catch (IOException e) {
+      log.error("Could not delete rotated change log in {}", folder, e);
+    }
+  }
+
+  /**
+   * Reads the rotated and the current log in the order the changes were written.
+   * A trailing incomplete line(crash during write) ends the replay of that file.
+   *
+   * @return amount of replayed changes
+   */
+  public synchronized int replay(Consumer<Change> consumer) {
+    int count = 0;
+    for (String fileName : new String[]{ROTATED_LOG_FILE, LOG_FILE}) {
+      Path file = folder.resolve(fileName);
+      if (!Files.exists(file)) {
+        continue;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          Change change;
+          try {
+            change = mapper.readValue(line, Change.class);
+          } catch (IOException e) {
+            log.warn("Stopping replay of {} at incomplete change", file, e);
+            break;
+          }
+          consumer.accept(change);
+          count++;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return count;
+  }
+
+  protected FileChannel getChannel() throws IOException {
+    if (channel == null) {
+      Files.createDirectories(folder);
+      channel = FileChannel.open(folder.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      FileSync.forceDirectory(folder);
+    }
+    return channel;
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        if (unsynced) {
+          channel.force(false);
+          unsynced = false;
+        }
+        channel.close();
+      } catch (IOException e) {
+        log.error("Could not close change log in {}", folder, e);
+      }
+      channel = null;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closeChannel();
+  }
+
+  public enum Operation {
+    PUT, REMOVE
+  }
+
+  public static class Change {
+    Operation operation;
+    long sequence;
+    String id;
+    IndexElement element;
+    List<QueryValue> values;
+
+    protected Change() {
+      //json
+    }
+
+    public static Change put(IndexElement element, Map<Query<?, ?>, Optional<Object>> queryValues) {
+      Change change = new Change();
+      change.operation = Operation.PUT;
+      change.sequence = element.getSequence();
+      change.id = element.getId();
+      change.element = element;
+      change.values = new ArrayList<>(queryValues.size());
+      queryValues.forEach((query, value) -> change.values.add(new QueryValue(query.getOwnerClass(), query.getName(), value)));
+      return change;
+    }
+
+    public static Change remove(String id, long sequence) {
+      Change change = new Change();
+      change.operation = Operation.REMOVE;
+      change.sequence = sequence;
+      change.id = id;
+      return change;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public IndexElement getElement() {
+      return element;
+    }
+
+    public List<QueryValue> getValues() {
+      return values;
+    }
+  }
+
+  public static class QueryValue {
+    Class<?> owner;
+    String queryName;
+    Optional<Object> value;
+
+    protected QueryValue() {
+      //json
+    }
+
+    public QueryValue(Class<?> owner, String queryName, Optional<Object> value) {
+      this.owner = owner;
+      this.queryName = queryName;
+      this.value = value;
+    }
+
+    public Class<?> getOwner() {
+      return owner;
+    }
+
+    public String getQueryName() {
+      return queryName;
+    }
+
+    public Optional<Object> getValue() {
+      return value == null ? Optional.empty() : value;
+    }
+  }
+}
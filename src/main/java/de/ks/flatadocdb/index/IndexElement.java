@@ -17,34 +17,51 @@
 package de.ks.flatadocdb.index;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.session.NaturalId;
 
 import java.nio.file.Path;
 
+/**
+ * Entry of the {@link GlobalIndex}.
+ * To keep the heap usage low the id is stored in binary form and the path is split into an interned folder and the file name.
+ */
 public class IndexElement {
+  private static final Interner<Path> folders = Interners.newWeakInterner();
+
   @JsonIgnore
   private Repository repository;
-  private final Path pathInRepository;
-  private final String id;
+  @JsonIgnore
+  private Path folder;
+  @JsonIgnore
+  private String fileName;
+  private final ElementId id;
   private final NaturalId naturalId;
   private final Class<?> entityClass;
   private byte[] md5Sum;
   private long lastModified;
+  private long size;
+  private long sequence;
 
   protected IndexElement() {
     id = null;
     naturalId = null;
     entityClass = null;
-    pathInRepository = null;
   }
 
   public IndexElement(Repository repository, Path pathInRepository, String id, NaturalId naturalId, Class<?> entityClass) {
+    this(repository, pathInRepository, ElementId.of(id), naturalId, entityClass);
+  }
+
+  public IndexElement(Repository repository, Path pathInRepository, ElementId id, NaturalId naturalId, Class<?> entityClass) {
     this.repository = repository;
-    this.pathInRepository = pathInRepository;
     this.id = id;
     this.naturalId = naturalId;
     this.entityClass = entityClass;
+    setPathInRepository(pathInRepository);
   }
 
   public byte[] getMd5Sum() {
@@ -64,14 +81,32 @@ public class IndexElement {
     return repository;
   }
 
+  @JsonProperty("pathInRepository")
   public Path getPathInRepository() {
-    return pathInRepository;
+    return folder.resolve(fileName);
+  }
+
+  @JsonProperty("pathInRepository")
+  private void setPathInRepository(Path pathInRepository) {
+    this.folder = folders.intern(pathInRepository.getParent());
+    this.fileName = pathInRepository.getFileName().toString();
+  }
+
+  public Path getFolder() {
+    return folder;
+  }
+
+  public String getFileName() {
+    return fileName;
   }
 
   public String getId() {
-    return id;
+    return id.toString();
   }
 
+  public ElementId getElementId() {
+    return id;
+  }
   public NaturalId getNaturalId() {
     return naturalId;
   }
@@ -89,6 +124,34 @@ public class IndexElement {
     return this;
   }
 
+  public long getSize() {
+    return size;
+  }
+
+  public IndexElement setSize(long size) {
+    this.size = size;
+    return this;
+  }
+
+  /**
+   * @return sequence number of the last change of this element in the {@link GlobalIndex}
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  public IndexElement setSequence(long sequence) {
+    this.sequence = sequence;
+    return this;
+  }
+
+  /**
+   * @return true if the given file attributes still match the ones recorded in this element
+   */
+  public boolean isUpToDate(long lastModified, long size) {
+    return this.lastModified == lastModified && this.size == size;
+  }
+
   protected void setRepository(Repository repository) {
     this.repository = repository;
   }
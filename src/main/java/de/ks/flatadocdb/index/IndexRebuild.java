@@ -0,0 +1,179 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.defaults.DefaultIdGenerator;
+import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.session.NaturalId;
+import de.ks.flatadocdb.session.SessionEntry;
+import de.ks.flatadocdb.util.TimeProfiler;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Rebuilds several indexes with a single scan of the repository.
+ * The entity type of every file is detected via its header({@link EntityTypeDetector}) and every file is loaded once,
+ * the resulting {@link SessionEntry} is handed to all indexes via {@link Index#addRebuiltEntry(SessionEntry)}.
+ */
+public class IndexRebuild {
+  private static final Logger log = LoggerFactory.getLogger(IndexRebuild.class);
+
+  protected final Repository repository;
+  protected final MetaModel metaModel;
+  protected final ExecutorService executorService;
+  protected final List<Index> indexes;
+
+  public IndexRebuild(Repository repository, MetaModel metaModel, ExecutorService executorService, Index... indexes) {
+    this.repository = repository;
+    this.metaModel = metaModel;
+    this.executorService = executorService;
+    this.indexes = Arrays.asList(indexes);
+  }
+
+  /**
+   * Scans and adds all files of the repository.
+   * Files are submitted while the repository is still walked.
+   *
+   * @return amount of files that were added to the indexes
+   */
+  public int rebuild() {
+    TimeProfiler profiler = new TimeProfiler("Index rebuild").start();
+    EntityTypeDetector detector = new EntityTypeDetector(repository, metaModel.getEntities());
+    DefaultIdGenerator idGenerator = new DefaultIdGenerator();
+    Map<Path, Future<SessionEntry>> futures = new ConcurrentHashMap<>();
+    repository.walkFilesInRepository((file, attributes) -> futures.put(file, submit(detector, idGenerator, file)));
+    return await(futures, profiler);
+  }
+
+  /**
+   * @return amount of files that were added to the indexes
+   */
+  public int rebuild(Collection<Path> files) {
+    TimeProfiler profiler = new TimeProfiler("Index rebuild").start();
+    EntityTypeDetector detector = new EntityTypeDetector(repository, metaModel.getEntities());
+    DefaultIdGenerator idGenerator = new DefaultIdGenerator();
+    Map<Path, Future<SessionEntry>> futures = new LinkedHashMap<>();
+    for (Path file : files) {
+      futures.put(file, submit(detector, idGenerator, file));
+    }
+    return await(futures, profiler);
+  }
+
+  /**
+   * Applies files that were created, changed or deleted outside of a session.
+   * Existing entity files are reloaded and replace their entries, the entries of missing files are removed.
+   *
+   * @return amount of files that were reloaded or removed
+   */
+  public int refresh(Collection<Path> files) {
+    TimeProfiler profiler = new TimeProfiler("Index refresh").start();
+    EntityTypeDetector detector = new EntityTypeDetector(repository, metaModel.getEntities());
+    DefaultIdGenerator idGenerator = new DefaultIdGenerator();
+    Map<Path, Future<SessionEntry>> futures = new LinkedHashMap<>();
+    int removed = 0;
+    for (Path file : files) {
+      if (Files.isRegularFile(file)) {
+        futures.put(file, executorService.submit(() -> {
+          EntityDescriptor descriptor = detector.detect(file);
+          if (descriptor == null) {
+            return null;
+          }
+          SessionEntry entry = load(idGenerator, descriptor, file);
+          for (Index index : indexes) {
+            index.updateEntry(entry);
+          }
+          log.trace("Refreshed {} in indexes", entry);
+          return entry;
+        }));
+      } else {
+        SessionEntry entry = new SessionEntry(null, idGenerator.getSha1Hash(repository.getPath(), file), 0, null, file, null);
+        for (Index index : indexes) {
+          index.removeEntry(entry);
+        }
+        removed++;
+      }
+    }
+    return await(futures, profiler) + removed;
+  }
+
+  protected Future<SessionEntry> submit(EntityTypeDetector detector, DefaultIdGenerator idGenerator, Path file) {
+    return executorService.submit(() -> {
+      EntityDescriptor descriptor = detector.detect(file);
+      if (descriptor == null) {
+        return null;
+      }
+      SessionEntry entry = load(idGenerator, descriptor, file);
+      for (Index index : indexes) {
+        index.addRebuiltEntry(entry);
+      }
+      log.trace("Added {} to indexes", entry);
+      return entry;
+    });
+  }
+
+  protected int await(Map<Path, Future<SessionEntry>> futures, TimeProfiler profiler) {
+    int added = 0;
+    for (Map.Entry<Path, Future<SessionEntry>> entry : futures.entrySet()) {
+      try {
+        if (entry.getValue().get() != null) {
+          added++;
+        }
+      } catch (Exception e) {
+        log.error("Could not index {}", entry.getKey(), e);
+      }
+    }
+    profiler.stop().logDebug(log);
+    log.debug("Added {} of {} files to {} indexes", added, futures.size(), indexes.size());
+    return added;
+  }
+
+  protected SessionEntry load(DefaultIdGenerator idGenerator, EntityDescriptor descriptor, Path path) {
+    String id = idGenerator.getSha1Hash(repository.getPath(), path);
+    byte[] md5 = readMd5(path);
+    Object loaded = descriptor.getPersister().load(repository, descriptor, path, new HashMap<>());
+    Serializable naturalId = descriptor.getNaturalId(loaded);
+    SessionEntry entry = new SessionEntry(loaded, id, descriptor.getVersion(loaded), naturalId == null ? null : new NaturalId(descriptor.getEntityClass(), naturalId), path, descriptor);
+    entry.setMd5(md5);
+    return entry;
+  }
+
+  protected byte[] readMd5(Path path) {
+    byte[] md5 = new byte[0];
+    try (FileInputStream stream = new FileInputStream(path.toFile())) {
+      try (BufferedInputStream buffered = new BufferedInputStream(stream)) {
+        md5 = DigestUtils.md5(buffered);
+      }
+    } catch (IOException e) {
+      log.error("Could not get md5 of {}", path, e);
+    }
+    return md5;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the entity ids of a segment from the id doc values.
+ * Documents written before the doc values existed fall back to the stored field.
+ */
+public class LuceneIdReader {
+  private static final String ID = StandardLuceneFields.ID.name();
+  private static final Set<String> ID_FIELD = Collections.singleton(ID);
+
+  private final LeafReader reader;
+  private final SortedDocValues ids;
+
+  public LuceneIdReader(LeafReader reader) throws IOException {
+    this.reader = reader;
+    this.ids = reader.getSortedDocValues(ID);
+  }
+
+  /**
+   * @param doc segment local document number
+   */
+  public String get(int doc) throws IOException {
+    if (ids != null) {
+      int ord = ids.getOrd(doc);
+      if (ord >= 0) {
+        return ids.lookupOrd(ord).utf8ToString();
+      }
+    }
+    return reader.document(doc, ID_FIELD).get(ID);
+  }
+
+  /**
+   * @return the ids of the given top level hits in the same order
+   */
+  public static List<String> read(IndexReader reader, ScoreDoc[] hits) throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LuceneIdReader[] readers = new LuceneIdReader[leaves.size()];
+    ArrayList<String> retval = new ArrayList<>(hits.length);
+    for (ScoreDoc hit : hits) {
+      int leaf = ReaderUtil.subIndex(hit.doc, leaves);
+      LeafReaderContext context = leaves.get(leaf);
+      if (readers[leaf] == null) {
+        readers[leaf] = new LuceneIdReader(context.reader());
+      }
+      retval.add(readers[leaf].get(hit.doc - context.docBase));
+    }
+    return retval;
+  }
+}
@@ -16,46 +16,119 @@
 
 package de.ks.flatadocdb.index;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import de.ks.flatadocdb.Repository;
-import de.ks.flatadocdb.defaults.DefaultIdGenerator;
 import de.ks.flatadocdb.ifc.LuceneDocumentExtractor;
 import de.ks.flatadocdb.metamodel.EntityDescriptor;
 import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.query.Query;
 import de.ks.flatadocdb.session.NaturalId;
 import de.ks.flatadocdb.session.SessionEntry;
 import de.ks.flatadocdb.util.TimeProfiler;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.reflections.ReflectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * Index managing a lucene directory.
+ * Searchers are shared via a {@link SearcherManager} which is refreshed by a background thread,
+ * readers see other threads' changes after at most the configured max staleness and their own changes immediately.
+ * <p>
+ * Changes are made durable by group commits, either periodically or after a given amount of changes.
+ * Every commit records the sequence of the {@link GlobalIndex} up to which all changes are contained,
+ * on startup only the changes after it are reindexed({@link #catchUp(GlobalIndex)}).
  */
 public class LuceneIndex extends Index {
   private static final Logger log = LoggerFactory.getLogger(LuceneIndex.class);
 
   public static final String LUCENE_INDEX_FOLDER = ".lucene";
+  public static final double DEFAULT_MAX_STALE_SECONDS = 1.0;
+  public static final double MIN_STALE_SECONDS = 0.01;
+  public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 5000;
+  public static final long DEFAULT_COMMIT_THRESHOLD = 1000;
+  public static final String SEQUENCE_KEY = "globalIndexSequence";
+  public static final String FORMAT_KEY = "documentFormat";
+  /**
+   * Ids of entities whose lucene update failed and which were not reindexed yet, they are reindexed on startup.
+   */
+  public static final String FAILED_KEY = "failedIds";
+  /**
+   * Failed updates of an entity after which reindexing it is given up until it changes again or the index is rebuilt.
+   */
+  public static final int MAX_FAILED_UPDATES = 3;
+  /**
+   * Version of the standard fields, an index with documents of another version is rebuilt on startup.
+   */
+  public static final int DOCUMENT_FORMAT = 2;
   private final Directory directory;
 
   private final StandardAnalyzer analyzer;
   private final IndexWriter indexWriter;
-  private volatile IndexReader indexReader;
-  private final AtomicBoolean dirty = new AtomicBoolean();
+  private final TrackingIndexWriter trackingWriter;
+  private final SearcherManager searcherManager;
+  private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+  /**
+   * Generation of the last change done by the current thread, searchers acquired by the thread wait for it.
+   */
+  private final ThreadLocal<Long> writeGeneration = ThreadLocal.withInitial(() -> -1L);
+
+  private final Object commitLock = new Object();
+  private final AtomicLong uncommittedChanges = new AtomicLong();
+  private final AtomicBoolean commitRequested = new AtomicBoolean();
+  /**
+   * Commits are suspended while the index is rebuilt, the rebuilt documents are not tracked by sequence.
+   */
+  private final AtomicInteger rebuilds = new AtomicInteger();
+  private final ScheduledExecutorService commitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LuceneCommit-%d").build());
+  private volatile ScheduledFuture<?> scheduledCommits;
+  private volatile long commitThreshold = DEFAULT_COMMIT_THRESHOLD;
+  /**
+   * Queue of the asynchronous updates, null if updates are applied synchronously.
+   */
+  private volatile LuceneUpdateQueue updateQueue;
+  private final ConcurrentHashMap<Class<?>, org.apache.lucene.search.Query> entityClassFilters = new ConcurrentHashMap<>();
+  /**
+   * Entities whose update failed, their sequence is acknowledged anyway and they are reindexed before the next commit.
+   */
+  private final Set<String> failedIds = ConcurrentHashMap.newKeySet();
+  private final ConcurrentHashMap<String, Integer> failedUpdates = new ConcurrentHashMap<>();
 
   public LuceneIndex(Repository repository, MetaModel metaModel, ExecutorService executorService) throws RuntimeException {
+    this(repository, metaModel, executorService, DEFAULT_MAX_STALE_SECONDS);
+  }
+
+  /**
+   * @param maxStaleSeconds maximum time until a change is visible to searchers of other threads
+   */
+  public LuceneIndex(Repository repository, MetaModel metaModel, ExecutorService executorService, double maxStaleSeconds) throws RuntimeException {
     super(repository, metaModel, executorService);
     try {
       Path resolve = repository.getPath().resolve(LUCENE_INDEX_FOLDER);
@@ -68,7 +141,12 @@ public class LuceneIndex extends Index {
         IndexWriterConfig cfg = new IndexWriterConfig(analyzer);
         cfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
         indexWriter = new IndexWriter(directory, cfg);
-        reopenIndexReader();
+        trackingWriter = new TrackingIndexWriter(indexWriter);
+        searcherManager = new SearcherManager(indexWriter, true, null);
+        reopenThread = new ControlledRealTimeReopenThread<>(trackingWriter, searcherManager, maxStaleSeconds, Math.min(MIN_STALE_SECONDS, maxStaleSeconds));
+        reopenThread.setName("LuceneReopen-" + repository.getName());
+        reopenThread.setDaemon(true);
+        reopenThread.start();
       } finally {
         profiler.stop().logDebug(log);
       }
@@ -77,157 +155,513 @@ public class LuceneIndex extends Index {
     }
   }
 
-  protected IndexReader reopenIndexReader() throws IOException {
-    indexReader = DirectoryReader.open(indexWriter, true);
-    return indexReader;
+  @Override
+  public void addEntry(SessionEntry sessionEntry) {
+    LuceneUpdateQueue queue = updateQueue;
+    if (queue != null) {
+      queue.enqueue(sessionEntry, false);
+      return;
+    }
+    try {
+      written(trackingWriter.addDocument(createDocument(sessionEntry, true)), sessionEntry);
+    } catch (IOException | RuntimeException e) {
+      failed(sessionEntry, e);
+    }
   }
 
   @Override
-  public void addEntry(SessionEntry sessionEntry) {
+  public void updateEntry(SessionEntry sessionEntry) {
+    LuceneUpdateQueue queue = updateQueue;
+    if (queue != null) {
+      queue.enqueue(sessionEntry, false);
+    } else {
+      try {
+        writeUpdate(sessionEntry);
+      } catch (RuntimeException e) {
+        failed(sessionEntry, e);
+      }
+    }
+  }
+
+  void writeUpdate(SessionEntry sessionEntry) {
     try {
-      writeEntry(sessionEntry, indexWriter);
-      makeDirty();
+      written(trackingWriter.updateDocument(idTerm(sessionEntry.getId()), createDocument(sessionEntry, true)), sessionEntry);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  @Override
-  public void updateEntry(SessionEntry sessionEntry) {
+  void writeRemove(SessionEntry sessionEntry) {
     try {
-      deleteEntry(sessionEntry, indexWriter);
-      writeEntry(sessionEntry, indexWriter);
-      makeDirty();
+      written(trackingWriter.deleteDocuments(idTerm(sessionEntry.getId())), sessionEntry);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private void makeDirty() {
-    dirty.set(true);
+  void acknowledge(SessionEntry sessionEntry) {
+    GlobalIndex globalIndex = repository.getIndex();
+    if (sessionEntry.getIndexSequence() > 0 && globalIndex != null) {
+      globalIndex.acknowledge(sessionEntry.getIndexSequence());
+    }
+  }
+
+  /**
+   * Acknowledges the change of an entity whose update could not be written, so the committed sequence can advance.
+   * The entity is remembered and reindexed from its file before the next commit.
+   */
+  void failed(SessionEntry sessionEntry, Exception e) {
+    log.error("Could not apply lucene update of {}", sessionEntry, e);
+    retry(sessionEntry.getId());
+    acknowledge(sessionEntry);
+  }
+
+  private void retry(String id) {
+    int failures = failedUpdates.merge(id, 1, Integer::sum);
+    if (failures >= MAX_FAILED_UPDATES) {
+      failedUpdates.remove(id);
+      log.error("Giving up reindexing {} in {} after {} failed lucene updates", id, repository.getName(), failures);
+    } else {
+      failedIds.add(id);
+    }
+  }
+
+  /**
+   * @return ids of entities whose update failed and which were not reindexed yet
+   */
+  public Set<String> getFailedIds() {
+    return Collections.unmodifiableSet(failedIds);
+  }
+
+  /**
+   * Reindexes the entities of failed updates from their files, entities which vanished are deleted.
+   * Entities failing again are kept for the next commit until they failed {@link #MAX_FAILED_UPDATES} times.
+   */
+  protected void reindexFailed(GlobalIndex globalIndex) {
+    if (failedIds.isEmpty()) {
+      return;
+    }
+    List<String> ids = new ArrayList<>(failedIds);
+    failedIds.removeAll(ids);
+    try {
+      List<Path> files = new ArrayList<>();
+      for (String id : ids) {
+        IndexElement element = globalIndex.getById(id);
+        if (element == null) {
+          removeEntry(id);
+        } else {
+          files.add(element.getPathInRepository());
+        }
+      }
+      int refreshed = new IndexRebuild(repository, metaModel, executorService, this).refresh(files);
+      ids.stream().filter(id -> !failedIds.contains(id)).forEach(failedUpdates::remove);
+      log.info("Reindexed {} entities of failed lucene updates in {}", refreshed, repository.getName());
+    } catch (RuntimeException e) {
+      ids.forEach(this::retry);
+      log.error("Could not reindex entities of failed lucene updates in {}", repository.getName(), e);
+    }
+  }
+
+  /**
+   * Remembers the generation for searchers of this thread and acknowledges the change to the global index.
+   */
+  private void written(long generation, @Nullable SessionEntry sessionEntry) {
+    writeGeneration.set(generation);
+    if (sessionEntry != null) {
+      acknowledge(sessionEntry);
+    }
+    if (uncommittedChanges.incrementAndGet() >= commitThreshold) {
+      requestCommit();
+    }
+  }
+
+  /**
+   * Documents of entities without an extracted document are only written if the extractor creates defaults.
+   */
+  @Override
+  public void addRebuiltEntry(SessionEntry sessionEntry) {
+    try {
+      Document document = createDocument(sessionEntry, false);
+      if (document != null) {
+        trackingWriter.addDocument(document);
+        uncommittedChanges.incrementAndGet();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   @Override
   public void recreate() {
-    clear();
-    Set<Path> allFiles = repository.getAllFilesInRepository();
-
-    Map<EntityDescriptor, Set<Path>> discovered = mapToEntityDescriptors(allFiles);
-    if (log.isDebugEnabled()) {
-      discovered.entrySet().forEach(e -> log.debug("For class {} found {} elements", e.getKey().getEntityClass().getSimpleName(), e.getValue().size()));
-    }
-
-    DefaultIdGenerator idGenerator = new DefaultIdGenerator();
-
-    List<Future<Document>> futures = discovered.entrySet().stream().map(entry -> {
-      EntityDescriptor descriptor = entry.getKey();
-      LuceneDocumentExtractor luceneExtractor = descriptor.getLuceneExtractor();
-
-      Set<Path> paths = entry.getValue();
-      ArrayList<Future<Document>> retval = new ArrayList<>();
-      for (Path path : paths) {
-        Future<Document> future = executorService.submit(() -> {
-          String id = idGenerator.getSha1Hash(repository.getPath(), path);
-          Object loaded = descriptor.getPersister().load(repository, descriptor, path, new HashMap<>());
-          Serializable naturalId = descriptor.getNaturalId(loaded);
-          @SuppressWarnings("unchecked")
-          Document document = luceneExtractor.createDocument(loaded);
-          if (document == null && luceneExtractor.isCreateDefaults()) {
-            document = new Document();
-          }
-          if (document != null) {
-            appendStandardFields(document, id, path.getFileName().toString(), naturalId == null ? null : new NaturalId(loaded.getClass(), naturalId));
-            log.trace("Created lucene document {}", document);
-          }
-          return document;
-        });
-        retval.add(future);
+    rebuild(() -> {
+      clear();
+      new IndexRebuild(repository, metaModel, executorService, this).rebuild();
+    });
+  }
+
+  /**
+   * Runs a rebuild of this index, commits are suspended during the rebuild and one commit is done afterwards.
+   */
+  public void rebuild(Runnable rebuild) {
+    rebuilds.incrementAndGet();
+    try {
+      rebuild.run();
+    } finally {
+      rebuilds.decrementAndGet();
+    }
+    commit();
+  }
+
+  /**
+   * Brings the index up to date with the global index after a restart.
+   * Without a recorded sequence the index is rebuilt completely,
+   * otherwise documents of removed elements are deleted and all elements changed after the last commit are reindexed.
+   */
+  public void catchUp(GlobalIndex globalIndex) {
+    long committed = getCommittedSequence();
+    String failed = indexWriter.getCommitData().get(FAILED_KEY);
+    if (committed >= 0 && committed >= globalIndex.getSequence() && failed == null) {
+      return;
+    }
+    rebuild(() -> {
+      if (committed < 0) {
+        log.info("No committed sequence in lucene index of {}, recreating it", repository.getName());
+        clear();
+        new IndexRebuild(repository, metaModel, executorService, this).rebuild();
+      } else {
+        int deleted = deleteVanished(globalIndex);
+        List<Path> changed = globalIndex.getChangedSince(committed).stream().map(IndexElement::getPathInRepository).collect(Collectors.toList());
+        if (failed != null) {
+          Arrays.stream(failed.split(",")).map(globalIndex::getById).filter(Objects::nonNull).map(IndexElement::getPathInRepository).forEach(changed::add);
+        }
+        int refreshed = new IndexRebuild(repository, metaModel, executorService, this).refresh(changed);
+        log.info("Lucene index of {} was at sequence {} of {}, deleted {} and reindexed {} documents", repository.getName(), committed, globalIndex.getSequence(), deleted, refreshed);
       }
-      return retval;
-    }).reduce(new ArrayList<>(), (l1, l2) -> {
-      l1.addAll(l2);
-      return l1;
     });
+  }
 
-    for (Future<Document> future : futures) {
-      try {
-        Document document = future.get();
-        if (document != null) {
-          indexWriter.addDocument(document);
+  protected int deleteVanished(GlobalIndex globalIndex) {
+    int deleted = 0;
+    IndexReader reader = getIndexReader();
+    try {
+      Terms terms = MultiFields.getTerms(reader, StandardLuceneFields.ID.name());
+      if (terms == null) {
+        return 0;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        String id = term.utf8ToString();
+        if (globalIndex.getById(id) == null) {
+          trackingWriter.deleteDocuments(idTerm(id));
+          deleted++;
         }
-      } catch (Exception e) {
-        log.error("Could not retrieve index element", e);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      try {
+        reader.decRef();
+      } catch (IOException e) {
+        log.error("Could not release lucene reader", e);
       }
     }
+    return deleted;
   }
 
   @Override
   public void removeEntry(SessionEntry sessionEntry) {
+    LuceneUpdateQueue queue = updateQueue;
+    if (queue != null) {
+      queue.enqueue(sessionEntry, true);
+    } else {
+      try {
+        writeRemove(sessionEntry);
+      } catch (RuntimeException e) {
+        failed(sessionEntry, e);
+      }
+    }
+  }
+
+  @Override
+  public void removeEntry(String id) {
     try {
-      deleteEntry(sessionEntry, indexWriter);
-      makeDirty();
+      written(trackingWriter.deleteDocuments(idTerm(id)), null);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  protected void deleteEntry(SessionEntry sessionEntry, IndexWriter writer) throws IOException {
-    writer.deleteDocuments(new Term(StandardLuceneFields.ID.name(), sessionEntry.getId()));
+  protected Term idTerm(String id) {
+    return new Term(StandardLuceneFields.ID.name(), id);
   }
 
-  protected void writeEntry(SessionEntry sessionEntry, IndexWriter writer) throws IOException {
-    LuceneDocumentExtractor luceneExtractor = sessionEntry.getEntityDescriptor().getLuceneExtractor();
+  /**
+   * Switches to asynchronous updates, entries are queued and indexed by a dedicated thread.
+   * Searchers don't wait for queued updates, use {@link #awaitSearchable(long)} with the ticket of {@link #getLastTicket()}.
+   *
+   * @param capacity maximum amount of queued updates, further updates block
+   */
+  public synchronized void enableAsyncUpdates(int capacity) {
+    if (updateQueue == null) {
+      updateQueue = new LuceneUpdateQueue(this, repository, capacity);
+    }
+  }
+
+  /**
+   * @return ticket of the last asynchronous update queued by the current thread, 0 if none
+   */
+  public long getLastTicket() {
+    LuceneUpdateQueue queue = updateQueue;
+    return queue == null ? 0 : queue.getLastTicket();
+  }
+
+  /**
+   * Blocks until the asynchronous update with the given ticket is visible to new searchers.
+   */
+  public void awaitSearchable(long ticket) {
+    LuceneUpdateQueue queue = updateQueue;
+    if (queue != null && ticket > 0) {
+      queue.awaitSearchable(ticket);
+    }
+  }
+
+  long getGeneration() {
+    return trackingWriter.getGeneration();
+  }
+
+  /**
+   * Schedules an asynchronous commit if none is pending yet.
+   */
+  public void requestCommit() {
+    if (commitRequested.compareAndSet(false, true)) {
+      try {
+        commitExecutor.submit(() -> {
+          commitRequested.set(false);
+          tryCommit();
+        });
+      } catch (RejectedExecutionException e) {
+        commitRequested.set(false);
+        log.debug("Commit executor already shut down, not scheduling commit for {}", repository.getName());
+      }
+    }
+  }
+
+  /**
+   * Periodically commits the pending changes, the interval is the upper bound of changes lost on a crash.
+   */
+  public void scheduleCommits(long interval, TimeUnit unit) {
+    ScheduledFuture<?> old = scheduledCommits;
+    if (old != null) {
+      old.cancel(false);
+    }
+    scheduledCommits = commitExecutor.scheduleWithFixedDelay(() -> {
+      if (uncommittedChanges.get() > 0) {
+        tryCommit();
+      }
+    }, interval, interval, unit);
+  }
+
+  public void setCommitThreshold(long commitThreshold) {
+    this.commitThreshold = commitThreshold;
+  }
+
+  private void tryCommit() {
+    try {
+      commit();
+    } catch (RuntimeException e) {
+      log.error("Could not commit lucene index of {}", repository.getName(), e);
+    }
+  }
+
+  /**
+   * Commits all pending changes together with the acknowledged sequence of the global index.
+   * The sequence is read before the commit, so all changes up to it are contained.
+   */
+  public void commit() {
+    synchronized (commitLock) {
+      if (rebuilds.get() > 0) {
+        return;
+      }
+      GlobalIndex globalIndex = repository.getIndex();
+      if (globalIndex != null) {
+        reindexFailed(globalIndex);
+        globalIndex.syncChangeLog();//a recorded sequence must not be lost from the change log
+      }
+      long sequence = globalIndex == null ? -1 : globalIndex.getAcknowledgedSequence();
+      uncommittedChanges.set(0);
+      try {
+        if (sequence >= 0) {
+          HashMap<String, String> commitData = new HashMap<>();
+          commitData.put(SEQUENCE_KEY, String.valueOf(sequence));
+          commitData.put(FORMAT_KEY, String.valueOf(DOCUMENT_FORMAT));
+          if (!failedIds.isEmpty()) {
+            commitData.put(FAILED_KEY, String.join(",", failedIds));
+          }
+          indexWriter.setCommitData(commitData);
+        }
+        indexWriter.commit();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      log.trace("Committed lucene index of {} at sequence {}", repository.getName(), sequence);
+    }
+  }
+
+  /**
+   * @return sequence of the global index recorded with the last commit, -1 if none or if the documents have an older format
+   */
+  public long getCommittedSequence() {
+    Map<String, String> commitData = indexWriter.getCommitData();
+    String sequence = commitData.get(SEQUENCE_KEY);
+    if (sequence == null || !String.valueOf(DOCUMENT_FORMAT).equals(commitData.get(FORMAT_KEY))) {
+      return -1;
+    }
+    return Long.parseLong(sequence);
+  }
+
+  protected Document createDocument(SessionEntry sessionEntry, boolean forceDefaults) {
+    EntityDescriptor descriptor = sessionEntry.getEntityDescriptor();
+    LuceneDocumentExtractor luceneExtractor = descriptor.getLuceneExtractor();
     @SuppressWarnings("unchecked")
-    Document document = luceneExtractor.createDocument(sessionEntry.getObject());
+    Document document = luceneExtractor.createReusableDocument(sessionEntry.getObject());
     if (document == null) {
+      if (!forceDefaults && !luceneExtractor.isCreateDefaults() && descriptor.getQueries().isEmpty()) {
+        return null;
+      }
       document = new Document();
     }
     String id = sessionEntry.getId();
     String fileName = sessionEntry.getFileName();
     NaturalId naturalId = sessionEntry.getNaturalId();
-    appendStandardFields(document, id, fileName, naturalId);
+    appendStandardFields(document, id, fileName, naturalId, descriptor.getEntityClass());
+    appendQueryFields(document, descriptor, sessionEntry.getObject());
 
     if (log.isTraceEnabled()) {
-      document.getFields().forEach(f -> log.trace("Extracted field {} from {}({}). Vaue={}",//
+      document.getFields().stream().filter(f -> f.stringValue() != null).forEach(f -> log.trace("Extracted field {} from {}({}). Vaue={}",//
         f.name(), sessionEntry.getObject(), sessionEntry.getFileName(), //
         f.stringValue().length() > 70 ? f.stringValue().substring(0, 70) : f.stringValue()));
     }
-    writer.addDocument(document);
+    return document;
   }
 
-  private void appendStandardFields(Document document, String id, String fileName, NaturalId naturalId) {
+  private void appendStandardFields(Document document, String id, String fileName, NaturalId naturalId, Class<?> entityClass) {
     for (StandardLuceneFields luceneField : StandardLuceneFields.values()) {
       String key = luceneField.name();
       if (document.getField(key) != null) {
-        document.removeField(key);
+        document.removeFields(key);
       }
     }
     document.add(StandardLuceneFields.ID.create(id));
+    document.add(new SortedDocValuesField(StandardLuceneFields.ID.name(), new BytesRef(id)));
     document.add(StandardLuceneFields.FILENAME.create(fileName));
     document.add(StandardLuceneFields.NATURAL_ID.create(naturalId == null ? "" : String.valueOf(naturalId.getKey())));
+    for (Class<?> type : getEntityTypes(entityClass)) {
+      document.add(new StringField(StandardLuceneFields.ENTITY_CLASS.name(), type.getName(), Field.Store.NO));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Set<Class<?>> getEntityTypes(Class<?> entityClass) {
+    Set<Class<?>> types = ReflectionUtils.getAllSuperTypes(entityClass);
+    types.add(entityClass);
+    types.remove(Object.class);
+    return types;
+  }
+
+  /**
+   * Filter matching all documents of the given class including subclasses.
+   * The matching documents are cached per segment, so the filter is only evaluated once per reader.
+   */
+  public org.apache.lucene.search.Query getEntityClassFilter(Class<?> entityClass) {
+    return entityClassFilters.computeIfAbsent(entityClass, clazz -> new CachingWrapperQuery(//
+      new TermQuery(new Term(StandardLuceneFields.ENTITY_CLASS.name(), clazz.getName())), QueryCachingPolicy.ALWAYS_CACHE));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void appendQueryFields(Document document, EntityDescriptor descriptor, Object object) {
+    for (Query<?, ?> query : descriptor.getQueries()) {
+      String name = LuceneQueryFields.getFieldName(query);
+      if (document.getField(name) != null) {
+        document.removeFields(name);
+      }
+      LuceneQueryFields.add(document, query, ((Query<Object, ?>) query).getValue(object));
+    }
   }
 
   public Directory getDirectory() {
     return directory;
   }
 
+  /**
+   * Acquires a shared searcher which contains all changes of the current thread.
+   * It has to be given back via {@link #releaseSearcher(IndexSearcher)}.
+   */
+  public IndexSearcher acquireSearcher() {
+    waitForGeneration(writeGeneration.get());
+    try {
+      return searcherManager.acquire();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void releaseSearcher(IndexSearcher searcher) {
+    try {
+      searcherManager.release(searcher);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return a reader containing all changes done so far, the caller owns a reference and has to call {@link IndexReader#decRef()}
+   */
   public IndexReader getIndexReader() {
-    if (dirty.get()) {
-      try {
-        reopenIndexReader();
-        dirty.set(true);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+    waitForGeneration(trackingWriter.getGeneration());
+    IndexSearcher searcher = acquireSearcher();
+    try {
+      IndexReader reader = searcher.getIndexReader();
+      reader.incRef();
+      return reader;
+    } finally {
+      releaseSearcher(searcher);
+    }
+  }
+
+  protected void waitForGeneration(long generation) {
+    if (generation < 0) {
+      return;
+    }
+    try {
+      reopenThread.waitForGeneration(generation);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     }
-    return indexReader;
   }
 
   @Override
   public void close() {
+    LuceneUpdateQueue queue = updateQueue;
+    if (queue != null) {
+      queue.close();
+    }
+    commitExecutor.shutdown();
+    try {
+      commitExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      commit();
+    } catch (RuntimeException e) {
+      log.error("Could not commit lucene index of {} on close", repository.getName(), e);
+    }
     try {
+      reopenThread.close();
+      searcherManager.close();
       indexWriter.close();
-      indexReader.close();
       analyzer.close();
     } catch (IOException e) {
       log.error("Could not close lucene", e);
@@ -236,7 +670,7 @@ public class LuceneIndex extends Index {
 
   public void clear() {
     try {
-      indexWriter.deleteAll();
+      written(trackingWriter.deleteAll(), null);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,184 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import com.google.common.primitives.Primitives;
+import de.ks.flatadocdb.query.Query;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * Indexes the values of {@link de.ks.flatadocdb.annotation.QueryProvider}s as lucene fields
+ * and creates the matching lucene queries, so structured predicates can be combined with full text queries.
+ * <p>
+ * Integral values are indexed as {@link LongField}s, floating point values as {@link DoubleField}s,
+ * temporal values as longs(epoch day, nano of day, epoch millis) and strings, booleans and enums as {@link StringField}s.
+ * Every field gets doc values of the same name, so the presence of a value can be queried without enumerating terms.
+ * Values of other types are not indexed, all values of one query need to be indexed as the same type.
+ */
+public final class LuceneQueryFields {
+  private static final Logger log = LoggerFactory.getLogger(LuceneQueryFields.class);
+  public static final String FIELD_PREFIX = "query:";
+
+  private LuceneQueryFields() {
+    //
+  }
+
+  public static String getFieldName(Query<?, ?> query) {
+    return FIELD_PREFIX + query.getOwnerClass().getName() + "." + query.getName();
+  }
+
+  public static boolean isSupported(Object value) {
+    return toIndexValue(value) != null;
+  }
+
+  /**
+   * Adds the field for the given query value, null and unsupported values are ignored.
+   * Strings longer than {@link IndexWriter#MAX_TERM_LENGTH} bytes are ignored too, lucene would reject the whole document.
+   */
+  public static void add(Document document, Query<?, ?> query, @Nullable Object value) {
+    Object indexValue = toIndexValue(value);
+    if (indexValue == null) {
+      return;
+    }
+    String name = getFieldName(query);
+    if (indexValue instanceof Long) {
+      document.add(new LongField(name, (Long) indexValue, Field.Store.NO));
+      document.add(new NumericDocValuesField(name, (Long) indexValue));
+    } else if (indexValue instanceof Double) {
+      document.add(new DoubleField(name, (Double) indexValue, Field.Store.NO));
+      document.add(new DoubleDocValuesField(name, (Double) indexValue));
+    } else {
+      BytesRef bytes = new BytesRef((String) indexValue);
+      if (bytes.length > IndexWriter.MAX_TERM_LENGTH) {
+        log.debug("Not indexing value of {} with {} bytes, longer than the maximum term length", name, bytes.length);
+        return;
+      }
+      document.add(new StringField(name, (String) indexValue, Field.Store.NO));
+      document.add(new SortedDocValuesField(name, bytes));
+    }
+  }
+
+  public static org.apache.lucene.search.Query equal(Query<?, ?> query, Object value) {
+    Objects.requireNonNull(value);
+    return range(query, value, true, value, true);
+  }
+
+  public static org.apache.lucene.search.Query in(Query<?, ?> query, Collection<?> values) {
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    values.stream().filter(Objects::nonNull).forEach(value -> builder.add(equal(query, value), BooleanClause.Occur.SHOULD));
+    return builder.build();
+  }
+
+  /**
+   * @param from lower bound, null for unbounded
+   * @param to   upper bound, null for unbounded
+   * @return query matching all entities with a value if both bounds are null
+   * @throws IllegalArgumentException if the bounds are indexed as different types or not like the values of the query
+   */
+  public static org.apache.lucene.search.Query range(Query<?, ?> query, @Nullable Object from, boolean fromInclusive, @Nullable Object to, boolean toInclusive) {
+    String name = getFieldName(query);
+    Object lower = checkedIndexValue(from);
+    Object upper = checkedIndexValue(to);
+    if (lower != null && upper != null && lower.getClass() != upper.getClass()) {
+      throw new IllegalArgumentException("Bounds " + from + " and " + to + " of query " + query + " are indexed as different types");
+    }
+    Object type = lower != null ? lower : upper;
+    Class<?> indexType = getIndexType(query.getValueType());
+    if (type != null && indexType != null && type.getClass() != indexType) {
+      Object bound = lower != null ? from : to;
+      throw new IllegalArgumentException("Bound " + bound + " of query " + query + " is of type " + bound.getClass().getName() + " which is not indexed like the values of type " + query.getValueType().getName());
+    }
+    if (type == null) {
+      return new FieldValueQuery(name);
+    } else if (type instanceof Long) {
+      return NumericRangeQuery.newLongRange(name, (Long) lower, (Long) upper, fromInclusive, toInclusive);
+    } else if (type instanceof Double) {
+      return NumericRangeQuery.newDoubleRange(name, (Double) lower, (Double) upper, fromInclusive, toInclusive);
+    } else if (Objects.equals(lower, upper) && fromInclusive && toInclusive) {
+      return new TermQuery(new Term(name, (String) lower));
+    } else {
+      return TermRangeQuery.newStringRange(name, (String) lower, (String) upper, fromInclusive, toInclusive);
+    }
+  }
+
+  private static Object checkedIndexValue(@Nullable Object value) {
+    Object indexValue = toIndexValue(value);
+    if (value != null && indexValue == null) {
+      throw new IllegalArgumentException("Query values of type " + value.getClass().getName() + " are not indexed in lucene");
+    }
+    return indexValue;
+  }
+
+  /**
+   * @return the class of the index values of the given value type, null if not known
+   */
+  @Nullable
+  static Class<?> getIndexType(@Nullable Class<?> valueType) {
+    if (valueType == null) {
+      return null;
+    }
+    Class<?> type = Primitives.wrap(valueType);
+    if (Long.class.equals(type) || Integer.class.equals(type) || Short.class.equals(type) || Byte.class.equals(type)//
+      || LocalDate.class.equals(type) || LocalTime.class.equals(type) || LocalDateTime.class.equals(type)) {
+      return Long.class;
+    } else if (Double.class.equals(type) || Float.class.equals(type)) {
+      return Double.class;
+    } else if (String.class.equals(type) || Boolean.class.equals(type) || Character.class.equals(type) || type.isEnum()) {
+      return String.class;
+    } else {
+      return null;
+    }
+  }
+
+  @Nullable
+  static Object toIndexValue(@Nullable Object value) {
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Double || value instanceof Float) {
+      return ((Number) value).doubleValue();
+    } else if (value instanceof String) {
+      return value;
+    } else if (value instanceof Boolean || value instanceof Character) {
+      return value.toString();
+    } else if (value instanceof Enum) {
+      return ((Enum<?>) value).name();
+    } else if (value instanceof LocalDate) {
+      return ((LocalDate) value).toEpochDay();
+    } else if (value instanceof LocalTime) {
+      return ((LocalTime) value).toNanoOfDay();
+    } else if (value instanceof LocalDateTime) {
+      return ((LocalDateTime) value).toInstant(ZoneOffset.UTC).toEpochMilli();
+    } else {
+      return null;
+    }
+  }
+}
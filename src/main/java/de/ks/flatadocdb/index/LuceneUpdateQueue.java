@@ -0,0 +1,193 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import de.ks.flatadocdb.session.NaturalId;
+import de.ks.flatadocdb.session.SessionEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies lucene updates asynchronously so the document extraction is not part of the committing thread.
+ * Updates are queued in a bounded queue(writers block if it is full) and applied in batches by a single indexing thread,
+ * which keeps the order of the updates of one entity.
+ * The entity is reloaded from its committed file, so later changes of the session's object are not indexed.
+ * Every queued update gets a ticket, {@link #awaitSearchable(long)} blocks until the update of a ticket is searchable.
+ */
+@ThreadSafe
+public class LuceneUpdateQueue {
+  private static final Logger log = LoggerFactory.getLogger(LuceneUpdateQueue.class);
+  public static final int MAX_BATCH_SIZE = 500;
+
+  protected final LuceneIndex luceneIndex;
+  protected final Repository repository;
+  protected final BlockingQueue<Update> queue;
+  protected final AtomicLong tickets = new AtomicLong();
+  protected final ThreadLocal<Long> lastTicket = ThreadLocal.withInitial(() -> 0L);
+  protected final Object appliedMonitor = new Object();
+  protected final Thread thread;
+  protected long appliedTicket;
+  protected volatile boolean closed;
+
+  public LuceneUpdateQueue(LuceneIndex luceneIndex, Repository repository, int capacity) {
+    this.luceneIndex = luceneIndex;
+    this.repository = repository;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    thread = new Thread(this::run, "LuceneUpdates-" + repository.getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return ticket of the update
+   */
+  public long enqueue(SessionEntry sessionEntry, boolean delete) {
+    if (closed) {
+      throw new IllegalStateException("Lucene update queue of " + repository.getName() + " already closed");
+    }
+    try {
+      long ticket;
+      synchronized (tickets) {//tickets have to be queued in order
+        ticket = tickets.incrementAndGet();
+        queue.put(new Update(ticket, sessionEntry, delete));
+      }
+      lastTicket.set(ticket);
+      return ticket;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return ticket of the last update queued by the current thread, 0 if none
+   */
+  public long getLastTicket() {
+    return lastTicket.get();
+  }
+
+  /**
+   * Blocks until the update with the given ticket was applied and is visible to new searchers.
+   */
+  public void awaitSearchable(long ticket) {
+    long generation;
+    synchronized (appliedMonitor) {
+      while (appliedTicket < ticket) {
+        if (closed && !thread.isAlive()) {
+          return;
+        }
+        try {
+          appliedMonitor.wait(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+      generation = luceneIndex.getGeneration();
+    }
+    luceneIndex.waitForGeneration(generation);
+  }
+
+  protected void run() {
+    List<Update> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Update first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        for (Update update : batch) {
+          apply(update);
+        }
+        synchronized (appliedMonitor) {
+          appliedTicket = batch.get(batch.size() - 1).ticket;
+          appliedMonitor.notifyAll();
+        }
+        log.trace("Applied {} lucene updates of {}", batch.size(), repository.getName());
+        batch.clear();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+  }
+
+  protected void apply(Update update) {
+    SessionEntry entry = update.sessionEntry;
+    try {
+      if (update.delete) {
+        luceneIndex.writeRemove(entry);
+      } else if (Files.exists(entry.getCompletePath())) {
+        luceneIndex.writeUpdate(reload(entry));
+      } else {
+        log.debug("File {} vanished before it was indexed", entry.getCompletePath());
+        luceneIndex.acknowledge(entry);
+      }
+    } catch (RuntimeException e) {
+      luceneIndex.failed(entry, e);
+    }
+  }
+
+  protected SessionEntry reload(SessionEntry entry) {
+    EntityDescriptor descriptor = entry.getEntityDescriptor();
+    Object loaded = descriptor.getPersister().load(repository, descriptor, entry.getCompletePath(), new HashMap<>());
+    Serializable naturalId = descriptor.getNaturalId(loaded);
+    SessionEntry reloaded = new SessionEntry(loaded, entry.getId(), descriptor.getVersion(loaded), naturalId == null ? null : new NaturalId(descriptor.getEntityClass(), naturalId), entry.getCompletePath(), descriptor);
+    reloaded.setIndexSequence(entry.getIndexSequence());
+    return reloaded;
+  }
+
+  /**
+   * Applies all queued updates and stops the indexing thread.
+   */
+  public void close() {
+    closed = true;
+    try {
+      thread.join(TimeUnit.MINUTES.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  protected static class Update {
+    final long ticket;
+    final SessionEntry sessionEntry;
+    final boolean delete;
+
+    Update(long ticket, SessionEntry sessionEntry, boolean delete) {
+      this.ticket = ticket;
+      this.sessionEntry = sessionEntry;
+      this.delete = delete;
+    }
+  }
+}
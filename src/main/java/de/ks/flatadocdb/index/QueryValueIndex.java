@@ -0,0 +1,149 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary index of the values of a single query.
+ * All values are kept in an inverted hash map for equality lookups.
+ * Comparable values are additionally kept in a sorted map to support range, prefix and ordered lookups.
+ * Values of different classes are ordered by their class name.
+ * Modifications are synchronized, lookups are lock free.
+ */
+@ThreadSafe
+public class QueryValueIndex {
+  public static final Comparator<Object> VALUE_ORDER = QueryValueIndex::compareValues;
+
+  protected final ConcurrentHashMap<Object, Set<IndexElement>> byValue = new ConcurrentHashMap<>();
+  protected final ConcurrentSkipListMap<Object, Set<IndexElement>> sorted = new ConcurrentSkipListMap<>(VALUE_ORDER);
+
+  public QueryValueIndex() {
+  }
+
+  public QueryValueIndex(Map<IndexElement, Object> values) {
+    values.forEach(this::put);
+  }
+
+  /**
+   * @param value raw query value, {@link QueryValues#NULL} is not indexed
+   */
+  public synchronized void put(IndexElement element, Object value) {
+    if (value != null && value != QueryValues.NULL) {
+      add(byValue, value, element);
+      if (value instanceof Comparable) {
+        add(sorted, value, element);
+      }
+    }
+  }
+
+  public synchronized void remove(IndexElement element, Object value) {
+    if (value != null && value != QueryValues.NULL) {
+      remove(byValue, value, element);
+      if (value instanceof Comparable) {
+        remove(sorted, value, element);
+      }
+    }
+  }
+
+  private static void add(Map<Object, Set<IndexElement>> map, Object value, IndexElement element) {
+    map.computeIfAbsent(value, k -> ConcurrentHashMap.newKeySet()).add(element);
+  }
+
+  private static void remove(Map<Object, Set<IndexElement>> map, Object value, IndexElement element) {
+    Set<IndexElement> elements = map.get(value);
+    if (elements != null) {
+      elements.remove(element);
+      if (elements.isEmpty()) {
+        map.remove(value);
+      }
+    }
+  }
+
+  public Collection<IndexElement> equal(Object value) {
+    Set<IndexElement> elements = byValue.get(value);
+    return elements == null ? Collections.emptySet() : Collections.unmodifiableSet(elements);
+  }
+
+  public Collection<IndexElement> in(Collection<?> values) {
+    ArrayList<IndexElement> retval = new ArrayList<>();
+    new HashSet<>(values).forEach(value -> retval.addAll(equal(value)));
+    return retval;
+  }
+
+  /**
+   * @param from lower bound, null for unbounded
+   * @param to   upper bound, null for unbounded
+   */
+  public Collection<IndexElement> range(@Nullable Object from, boolean fromInclusive, @Nullable Object to, boolean toInclusive) {
+    return flatten(subMap(from, fromInclusive, to, toInclusive));
+  }
+
+  public Collection<IndexElement> prefix(String prefix) {
+    return flatten(sorted.subMap(prefix, true, prefix + Character.MAX_VALUE, true));
+  }
+
+  /**
+   * @return unmodifiable view of all entries ordered by their value
+   */
+  public NavigableMap<Object, Set<IndexElement>> ordered(boolean ascending) {
+    NavigableMap<Object, Set<IndexElement>> view = Maps.transformValues(ascending ? sorted : sorted.descendingMap(), Collections::unmodifiableSet);
+    return Collections.unmodifiableNavigableMap(view);
+  }
+
+  protected ConcurrentNavigableMap<Object, Set<IndexElement>> subMap(@Nullable Object from, boolean fromInclusive, @Nullable Object to, boolean toInclusive) {
+    if (from != null && to != null) {
+      if (compareValues(from, to) > 0) {
+        return new ConcurrentSkipListMap<>();
+      }
+      return sorted.subMap(from, fromInclusive, to, toInclusive);
+    } else if (from != null) {
+      return sorted.tailMap(from, fromInclusive);
+    } else if (to != null) {
+      return sorted.headMap(to, toInclusive);
+    } else {
+      return sorted;
+    }
+  }
+
+  protected Collection<IndexElement> flatten(Map<Object, Set<IndexElement>> map) {
+    ArrayList<IndexElement> retval = new ArrayList<>();
+    map.values().forEach(retval::addAll);
+    return retval;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static int compareValues(Object o1, Object o2) {
+    Class<?> c1 = getComparisonClass(o1);
+    Class<?> c2 = getComparisonClass(o2);
+    if (c1 == c2) {
+      return ((Comparable<Object>) o1).compareTo(o2);
+    }
+    return c1.getName().compareTo(c2.getName());
+  }
+
+  private static Class<?> getComparisonClass(Object o) {
+    return o instanceof Enum ? ((Enum<?>) o).getDeclaringClass() : o.getClass();
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Query values are stored raw inside the {@link GlobalIndex}, a null value is represented by {@link #NULL}.
+ * This avoids one {@link Optional} per element and query.
+ */
+final class QueryValues {
+  static final Object NULL = new Object() {
+    @Override
+    public String toString() {
+      return "NULL";
+    }
+  };
+
+  private QueryValues() {
+  }
+
+  static Object wrap(Optional<?> value) {
+    return value.isPresent() ? value.get() : NULL;
+  }
+
+  static Object wrapNullable(Object value) {
+    return value == null ? NULL : value;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <V> Optional<V> unwrap(Object value) {
+    return value == NULL ? Optional.empty() : Optional.of((V) value);
+  }
+
+  static <V> Map<IndexElement, Optional<V>> asOptionalMap(Map<IndexElement, Object> values) {
+    return new OptionalView<>(values);
+  }
+
+  /**
+   * Read only view of raw query values.
+   */
+  static class OptionalView<V> extends AbstractMap<IndexElement, Optional<V>> {
+    private final Map<IndexElement, Object> values;
+
+    OptionalView(Map<IndexElement, Object> values) {
+      this.values = values;
+    }
+
+    @Override
+    public Optional<V> get(Object key) {
+      Object value = values.get(key);
+      return value == null ? null : unwrap(value);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return values.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+      return values.size();
+    }
+
+    @Override
+    public Set<IndexElement> keySet() {
+      return values.keySet();
+    }
+
+    @Override
+    public Set<Entry<IndexElement, Optional<V>>> entrySet() {
+      return new AbstractSet<Entry<IndexElement, Optional<V>>>() {
+        @Override
+        public Iterator<Entry<IndexElement, Optional<V>>> iterator() {
+          Iterator<Entry<IndexElement, Object>> iterator = values.entrySet().iterator();
+          return new Iterator<Entry<IndexElement, Optional<V>>>() {
+            @Override
+            public boolean hasNext() {
+              return iterator.hasNext();
+            }
+
+            @Override
+            public Entry<IndexElement, Optional<V>> next() {
+              Entry<IndexElement, Object> next = iterator.next();
+              return new SimpleImmutableEntry<>(next.getKey(), unwrap(next.getValue()));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return values.size();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+/**
+ * Format of the snapshot files written by a {@link GlobalIndex} checkpoint.
+ */
+public enum SnapshotFormat {
+  /**
+   * Human readable *index.json* and *query.json*
+   */
+  JSON,
+  /**
+   * Compact memory mapped *index.bin*, see {@link BinaryIndexSnapshot}
+   */
+  BINARY
+}
@@ -21,7 +21,11 @@ import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.IndexableField;
 
 public enum StandardLuceneFields {
-  ID, NATURAL_ID, FILENAME;
+  ID, NATURAL_ID, FILENAME,
+  /**
+   * Entity class and all its supertypes, not stored.
+   */
+  ENTITY_CLASS;
 
   public IndexableField create(String value) {
     return new StringField(name(), value, Field.Store.YES);
@@ -29,12 +29,14 @@ import de.ks.flatadocdb.query.Query;
 import de.ks.flatadocdb.session.relation.LazyEntity;
 import javassist.util.proxy.MethodHandler;
 import javassist.util.proxy.ProxyObject;
+import org.reflections.ReflectionUtils;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import java.io.Serializable;
 import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -190,6 +192,7 @@ public class EntityDescriptor {
   protected final Set<Relation> childRelations;
   protected final Set<Relation> normalRelations;
   protected final Set<Query<?, ?>> queries;
+  protected final List<PersistentField> persistentFields;
 
   public EntityDescriptor(Builder b) {
     this.entityClass = b.entityClass;
@@ -228,6 +231,18 @@ public class EntityDescriptor {
     normalRelations.addAll(toManyRelations);
     normalRelations.addAll(toOneRelations);
     this.normalRelations = Collections.unmodifiableSet(normalRelations);
+
+    this.persistentFields = entityClass == null ? Collections.emptyList() : Collections.unmodifiableList(findPersistentFields(entityClass, allRelations));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<PersistentField> findPersistentFields(Class<?> entityClass, Set<Relation> relations) {
+    Set<Field> relationFields = relations.stream().map(Relation::getRelationField).collect(Collectors.toSet());
+    Set<Field> fields = ReflectionUtils.getAllFields(entityClass, f -> !Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers()) && !f.isSynthetic());
+    return fields.stream()//
+      .sorted(Comparator.comparing((Field f) -> f.getDeclaringClass().getName()).thenComparing(Field::getName))//
+      .map(f -> new PersistentField(f, relationFields.contains(f)))//
+      .collect(Collectors.toList());
   }
 
   public Class<?> getEntityClass() {
@@ -404,6 +419,13 @@ public class EntityDescriptor {
     return luceneExtractor;
   }
 
+  /**
+   * @return all non static and non transient fields in a stable order
+   */
+  public List<PersistentField> getPersistentFields() {
+    return persistentFields;
+  }
+
   public Set<Query<?, ?>> getQueries() {
     return queries;
   }
@@ -17,6 +17,8 @@
 package de.ks.flatadocdb.metamodel;
 
 import de.ks.flatadocdb.annotation.Entity;
+import de.ks.flatadocdb.defaults.ReflectionLuceneDocumentExtractor;
+import de.ks.flatadocdb.defaults.ReflectionLuceneDocumentExtractor.DocValuesKind;
 import de.ks.flatadocdb.exception.EntityNotRegisteredException;
 import de.ks.flatadocdb.query.Query;
 import javassist.util.proxy.ProxyFactory;
@@ -55,6 +57,7 @@ public class MetaModel {
     try {
       EntityDescriptor entityDescriptor = new Parser().parse(clazz);
       log.info("Parsed entity {}", clazz.getName());
+      checkDocValues(entityDescriptor);
       entityDescriptor.getPersister().initialize(this);
       clazz2EntityDescriptor.put(entityDescriptor.getEntityClass(), entityDescriptor);
     } finally {
@@ -62,6 +65,34 @@ public class MetaModel {
     }
   }
 
+  /**
+   * All entities share one lucene index which rejects doc values of different types under the same field name.
+   */
+  protected void checkDocValues(EntityDescriptor added) {
+    Map<String, DocValuesKind> kinds = getDocValuesKinds(added);
+    for (EntityDescriptor other : clazz2EntityDescriptor.values()) {
+      if (other.getEntityClass().equals(added.getEntityClass())) {
+        continue;
+      }
+      Map<String, DocValuesKind> otherKinds = getDocValuesKinds(other);
+      for (Map.Entry<String, DocValuesKind> entry : kinds.entrySet()) {
+        DocValuesKind otherKind = otherKinds.get(entry.getKey());
+        if (otherKind != null && otherKind != entry.getValue()) {
+          throw new ParseException("Lucene field '" + entry.getKey() + "' of " + added.getEntityClass().getName() + " has " + entry.getValue() + " doc values, but " + otherKind + " doc values in " + other.getEntityClass().getName() + ". Rename one of the fields or use a custom lucene document extractor.");
+        }
+      }
+    }
+  }
+
+  private static Map<String, DocValuesKind> getDocValuesKinds(EntityDescriptor descriptor) {
+    Object extractor = descriptor.getLuceneExtractor();
+    if (extractor instanceof ReflectionLuceneDocumentExtractor) {
+      return ((ReflectionLuceneDocumentExtractor) extractor).getDocValuesKinds(descriptor.getEntityClass());
+    } else {
+      return Collections.emptyMap();
+    }
+  }
+
   public EntityDescriptor getEntityDescriptor(Class<?> clazz) throws EntityNotRegisteredException {
     lock.readLock().lock();
     try {
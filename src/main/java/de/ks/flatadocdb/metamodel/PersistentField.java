@@ -0,0 +1,67 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.metamodel;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * A field which is written to the entity file, used to capture the state of an entity.
+ */
+public class PersistentField {
+  private final Field field;
+  private final boolean relation;
+  private final MethodHandle getter;
+
+  public PersistentField(Field field, boolean relation) {
+    this.field = field;
+    this.relation = relation;
+    try {
+      field.setAccessible(true);
+      this.getter = MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Field getField() {
+    return field;
+  }
+
+  /**
+   * @return true if the field references other entities
+   */
+  public boolean isRelation() {
+    return relation;
+  }
+
+  public Object getValue(Object entity) {
+    try {
+      return (Object) getter.invokeExact(entity);
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return field.toString();
+  }
+}
@@ -45,6 +45,13 @@ public class Query<E, V> {
     return propertyPath.getPropertyPath();
   }
 
+  /**
+   * @return declared type of the queried property, null if it could not be recorded
+   */
+  public Class<?> getValueType() {
+    return propertyPath.getReturnType();
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -0,0 +1,203 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.defaults.DefaultIdGenerator;
+import de.ks.flatadocdb.exception.BulkInsertException;
+import de.ks.flatadocdb.ifc.FileGenerator;
+import de.ks.flatadocdb.ifc.FolderGenerator;
+import de.ks.flatadocdb.index.GlobalIndex;
+import de.ks.flatadocdb.index.LuceneIndex;
+import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.metamodel.relation.ChildRelation;
+import de.ks.flatadocdb.metamodel.relation.Relation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Stateless session for large imports, it only inserts new entities.
+ * Inserted entities are kept until the batch is full, then their files are written, the global and lucene index updated and the batch is forgotten.
+ * There is no identity map and no dirty checking, entities changed after their batch was written are not updated.
+ * Related entities without an id are inserted too, same as {@link Session#persist(Object)}.
+ */
+@NotThreadSafe
+public class BulkSession implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(BulkSession.class);
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  protected final MetaModel metaModel;
+  protected final Repository repository;
+  protected final GlobalIndex globalIndex;
+  protected final LuceneIndex luceneIndex;
+  protected final DefaultIdGenerator idGenerator = new DefaultIdGenerator();
+  protected final int batchSize;
+
+  protected final List<EntityInsertion> batch = new ArrayList<>();
+  protected final Set<String> batchIds = new HashSet<>();
+
+  protected long insertedCount;
+  protected long elapsedNanos;
+
+  public BulkSession(MetaModel metaModel, Repository repository) {
+    this(metaModel, repository, DEFAULT_BATCH_SIZE);
+  }
+
+  public BulkSession(MetaModel metaModel, Repository repository, int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size has to be at least 1, got " + batchSize);
+    }
+    this.metaModel = metaModel;
+    this.repository = repository;
+    this.globalIndex = repository.getIndex();
+    this.luceneIndex = repository.getLuceneIndex();
+    this.batchSize = batchSize;
+  }
+
+  public void insert(Object entity) {
+    Objects.requireNonNull(entity);
+
+    EntityDescriptor entityDescriptor = metaModel.getEntityDescriptor(entity.getClass());
+
+    Path folder = entityDescriptor.getFolderGenerator().getFolder(repository, repository.getPath(), entity);
+    String fileName = entityDescriptor.getFileGenerator().getFileName(repository, entityDescriptor, entity);
+
+    insert(entity, entityDescriptor, folder, fileName);
+    if (batch.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  protected void insert(Object entity, EntityDescriptor entityDescriptor, Path folder, String fileName) {
+    Path complete = folder.resolve(fileName);
+    String id = idGenerator.getSha1Hash(repository.getPath(), complete);
+
+    if (batchIds.contains(id) || globalIndex.getById(id) != null) {
+      log.warn("Trying to insert entity {} [{}] twice", entity, complete);
+      return;
+    }
+    entityDescriptor.writetId(entity, id);
+
+    Serializable naturalId = entityDescriptor.getNaturalId(entity);
+    SessionEntry sessionEntry = new SessionEntry(entity, id, 0, naturalId == null ? null : new NaturalId(entityDescriptor.getEntityClass(), naturalId), complete, entityDescriptor);
+    batchIds.add(id);
+    batch.add(new EntityInsertion(repository, sessionEntry));
+
+    insertRelations(entityDescriptor.getNormalRelations(), entity, sessionEntry);
+    insertRelations(entityDescriptor.getChildRelations(), entity, sessionEntry);
+  }
+
+  protected void insertRelations(Collection<Relation> relations, Object parent, SessionEntry sessionEntry) {
+    for (Relation relation : relations) {
+      for (Object related : relation.getRelatedEntities(parent)) {
+        EntityDescriptor descriptor = metaModel.getEntityDescriptor(related.getClass());
+        if (descriptor.getId(related) != null) {
+          continue;
+        }
+        if (relation instanceof ChildRelation) {
+          ChildRelation childRelation = (ChildRelation) relation;
+          FileGenerator fileGenerator = childRelation.getFileGenerator();
+          FolderGenerator folderGenerator = childRelation.getFolderGenerator();
+
+          Path folder = folderGenerator.getFolder(repository, sessionEntry.getFolder(), related);
+          insert(related, descriptor, folder, fileGenerator.getFileName(repository, descriptor, related));
+        } else {
+          Path folder = descriptor.getFolderGenerator().getFolder(repository, repository.getPath(), related);
+          insert(related, descriptor, folder, descriptor.getFileGenerator().getFileName(repository, descriptor, related));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the current batch, the batch is discarded afterwards even if it failed.
+   * If a file cannot be written all flush files of the batch are deleted again.
+   * If a file cannot be moved the entities moved before stay committed, the flush files of the others are deleted and a {@link BulkInsertException} names the committed entities.
+   */
+  public void flush() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    List<SessionEntry> indexed = new ArrayList<>(batch.size());
+    try {
+      try {
+        for (EntityInsertion insertion : batch) {
+          insertion.writeFlush();
+        }
+      } catch (RuntimeException e) {
+        batch.forEach(insertion -> insertion.rollback(null));
+        throw e;
+      }
+      try {
+        for (EntityInsertion insertion : batch) {
+          insertion.commit(globalIndex, () -> indexed.add(insertion.sessionEntry));
+        }
+      } catch (RuntimeException e) {
+        batch.forEach(insertion -> insertion.rollback(null));//moved files have no flush file anymore
+        List<Object> committed = indexed.stream().map(SessionEntry::getObject).collect(Collectors.toList());
+        throw new BulkInsertException("Inserted only " + committed.size() + " of " + batch.size() + " entities of the batch", committed, e);
+      }
+    } finally {
+      globalIndex.syncChangeLog();
+      indexed.forEach(luceneIndex::addEntry);
+      insertedCount += indexed.size();
+      clearBatch();
+    }
+    long nanos = System.nanoTime() - start;
+    elapsedNanos += nanos;
+    log.debug("Inserted batch of {} entities in {}ms, {} entities/s overall", indexed.size(), TimeUnit.NANOSECONDS.toMillis(nanos), (long) getEntitiesPerSecond());
+  }
+
+  private void clearBatch() {
+    batch.clear();
+    batchIds.clear();
+  }
+
+  /**
+   * @return amount of entities written so far, entities of the current batch are not contained
+   */
+  public long getInsertedCount() {
+    return insertedCount;
+  }
+
+  /**
+   * @return throughput of all written batches
+   */
+  public double getEntitiesPerSecond() {
+    return elapsedNanos == 0 ? 0 : insertedCount / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  @Override
+  public void close() {
+    flush();
+    log.info("Inserted {} entities, {} entities/s", insertedCount, (long) getEntitiesPerSecond());
+  }
+}
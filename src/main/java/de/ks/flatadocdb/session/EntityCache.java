@@ -0,0 +1,119 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Second level cache of file contents shared by all sessions of a {@link SessionFactory}.
+ * Entries are keyed by id and only used if their md5 sum matches the one of the index element, so changes made by other tools are detected.
+ * Sessions invalidate the entities they updated or deleted on commit.
+ * The cache is bounded by the size of the cached contents, least recently used entries are evicted first.
+ * Only entity classes enabled via {@link #enable(Class)} are cached.
+ */
+@ThreadSafe
+public class EntityCache {
+  private final Cache<String, CachedFile> cache;
+  private final Set<Class<?>> enabledClasses = ConcurrentHashMap.newKeySet();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maximumBytes maximum size of all cached file contents
+   */
+  public EntityCache(long maximumBytes) {
+    cache = CacheBuilder.newBuilder()//
+      .maximumWeight(maximumBytes)//
+      .weigher((Weigher<String, CachedFile>) (id, file) -> file.contents.length)//
+      .recordStats()//
+      .build();
+  }
+
+  public EntityCache enable(Class<?> entityClass) {
+    enabledClasses.add(entityClass);
+    return this;
+  }
+
+  public boolean isEnabled(Class<?> entityClass) {
+    return enabledClasses.contains(entityClass);
+  }
+
+  /**
+   * @return the cached contents or null if the entity is not cached or its contents changed
+   */
+  @Nullable
+  public byte[] get(String id, byte[] md5) {
+    CachedFile file = cache.getIfPresent(id);
+    if (file != null && Arrays.equals(file.md5, md5)) {
+      hits.incrementAndGet();
+      return file.contents;
+    }
+    if (file != null) {
+      cache.invalidate(id);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(String id, byte[] md5, byte[] contents) {
+    cache.put(id, new CachedFile(md5, contents));
+  }
+
+  public void invalidate(String id) {
+    cache.invalidate(id);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return cache.stats().evictionCount();
+  }
+
+  public long getSize() {
+    return cache.size();
+  }
+
+  private static final class CachedFile {
+    private final byte[] md5;
+    private final byte[] contents;
+
+    private CachedFile(byte[] md5, byte[] contents) {
+      this.md5 = md5;
+      this.contents = contents;
+    }
+  }
+}
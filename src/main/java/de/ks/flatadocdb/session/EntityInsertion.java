@@ -20,6 +20,7 @@ import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.annotation.lifecycle.LifeCycle;
 import de.ks.flatadocdb.exception.StaleObjectFileException;
 import de.ks.flatadocdb.ifc.EntityPersister;
+import de.ks.flatadocdb.index.GlobalIndex;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.nio.file.Path;
@@ -31,6 +32,10 @@ public class EntityInsertion extends SessionAction {
 
   @Override
   public void prepare(Session session) {
+    writeFlush();
+  }
+
+  void writeFlush() {
     if (sessionEntry.getCompletePath().toFile().exists()) {
       throw new StaleObjectFileException("Real file already exists" + sessionEntry.getCompletePath());
     }
@@ -56,14 +61,19 @@ public class EntityInsertion extends SessionAction {
 
   @Override
   public void commit(Session session) {
+    commit(session.globalIndex, () -> session.luceneUpdates.add(index -> index.addEntry(sessionEntry)));
+  }
+
+  /**
+   * Moves the flush file and adds the entry to the global index.
+   *
+   * @param luceneUpdate schedules the lucene update, it runs right after the entry got its sequence in the global index
+   */
+  void commit(GlobalIndex globalIndex, Runnable luceneUpdate) {
     moveFlushFile(getFlushPath());
-    addToIndex(session);
+    globalIndex.addEntry(sessionEntry);
+    luceneUpdate.run();
     executeLifecycleAction(LifeCycle.POST_PERSIST);
     executeLifecycleAction(LifeCycle.POST_UPDATE);
   }
-
-  private void addToIndex(Session session) {
-    session.globalIndex.addEntry(sessionEntry);
-    session.luceneUpdates.add(index -> index.addEntry(sessionEntry));
-  }
 }
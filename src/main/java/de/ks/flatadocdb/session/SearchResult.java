@@ -0,0 +1,74 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * One page of a lucene search.
+ * The entities are loaded together on first access, entities deleted since the search are null.
+ */
+public class SearchResult<E> extends AbstractList<E> {
+  private final List<String> ids;
+  private final int offset;
+  private final int totalHits;
+  private final Function<List<String>, List<E>> loader;
+  private List<E> entities;
+
+  public SearchResult(List<String> ids, int offset, int totalHits, Function<List<String>, List<E>> loader) {
+    this.ids = Collections.unmodifiableList(ids);
+    this.offset = offset;
+    this.totalHits = totalHits;
+    this.loader = loader;
+  }
+
+  @Override
+  public E get(int index) {
+    if (entities == null) {
+      entities = loader.apply(ids);
+    }
+    return entities.get(index);
+  }
+
+  @Override
+  public int size() {
+    return ids.size();
+  }
+
+  public List<String> getIds() {
+    return ids;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return amount of all matching entities, not only of this page
+   */
+  public int getTotalHits() {
+    return totalHits;
+  }
+
+  public boolean hasNext() {
+    return offset + ids.size() < totalHits;
+  }
+}
@@ -16,18 +16,24 @@
 
 package de.ks.flatadocdb.session;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.annotation.lifecycle.LifeCycle;
 import de.ks.flatadocdb.defaults.DefaultIdGenerator;
 import de.ks.flatadocdb.exception.IllegalSessionThreadException;
 import de.ks.flatadocdb.exception.NoIdField;
+import de.ks.flatadocdb.exception.ReadOnlySessionException;
 import de.ks.flatadocdb.ifc.EntityPersister;
 import de.ks.flatadocdb.ifc.FileGenerator;
 import de.ks.flatadocdb.ifc.FolderGenerator;
 import de.ks.flatadocdb.index.GlobalIndex;
 import de.ks.flatadocdb.index.Index;
 import de.ks.flatadocdb.index.IndexElement;
+import de.ks.flatadocdb.index.LuceneIdReader;
 import de.ks.flatadocdb.index.LuceneIndex;
+import de.ks.flatadocdb.index.LuceneQueryFields;
+import de.ks.flatadocdb.index.QueryValueIndex;
 import de.ks.flatadocdb.metamodel.EntityDescriptor;
 import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.metamodel.relation.ChildRelation;
@@ -38,22 +44,29 @@ import de.ks.flatadocdb.session.relation.LazyEntity;
 import de.ks.flatadocdb.session.transaction.local.TransactionResource;
 import de.ks.flatadocdb.util.TimeProfiler;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.IndexSearcher;
-import org.reflections.ReflectionUtils;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @NotThreadSafe//can only be used as ThreadLocal
 public class Session implements TransactionResource {
@@ -74,10 +87,30 @@ public class Session implements TransactionResource {
   protected final DirtyChecker dirtyChecker;
   protected final Thread thread;
   protected final List<Index> indexes;
+  protected final boolean readOnly;
+  @Nullable
+  protected final EntityCache entityCache;
 
   protected boolean rollbackonly = false;
+  protected long luceneTicket;
 
   public Session(MetaModel metaModel, Repository repository) {
+    this(metaModel, repository, false);
+  }
+
+  /**
+   * @param readOnly a read only session rejects persist and remove, it takes no snapshots of loaded entities and skips the dirty check and rename detection on prepare
+   */
+  public Session(MetaModel metaModel, Repository repository, boolean readOnly) {
+    this(metaModel, repository, readOnly, null);
+  }
+
+  /**
+   * @param entityCache shared cache of file contents, see {@link EntityCache}
+   */
+  public Session(MetaModel metaModel, Repository repository, boolean readOnly, @Nullable EntityCache entityCache) {
+    this.readOnly = readOnly;
+    this.entityCache = entityCache;
     this.metaModel = metaModel;
     this.repository = repository;
     this.globalIndex = repository.getIndex();
@@ -97,6 +130,7 @@ public class Session implements TransactionResource {
 
   public void persist(Object entity) {
     Objects.requireNonNull(entity);
+    checkWritable(entity);
 
     EntityDescriptor entityDescriptor = metaModel.getEntityDescriptor(entity.getClass());
 
@@ -167,6 +201,7 @@ public class Session implements TransactionResource {
 
   public void remove(Object entity) {
     Objects.requireNonNull(entity);
+    checkWritable(entity);
     SessionEntry sessionEntry = entity2Entry.get(entity);
     removeSessionEntry(sessionEntry, entity, Collections.emptySet());
   }
@@ -241,24 +276,61 @@ public class Session implements TransactionResource {
   }
 
   private SessionEntry loadSessionEntry(IndexElement indexElement) {
+    LoadedFile file = readFile(indexElement);
+    SessionEntry sessionEntry = attach(file);
+    resolveRelations(sessionEntry, file.relationIds);
+    return sessionEntry;
+  }
+
+  /**
+   * Parses the file of the element, it does not touch the session and can be used from any thread.
+   */
+  private LoadedFile readFile(IndexElement indexElement) {
     Objects.requireNonNull(indexElement);
     EntityDescriptor descriptor = metaModel.getEntityDescriptor(indexElement.getEntityClass());
     HashMap<Relation, Collection<String>> relationIds = new HashMap<>();
     descriptor.getAllRelations().forEach(rel -> relationIds.put(rel, new ArrayList<>()));
     EntityPersister persister = descriptor.getPersister();
+    if (entityCache != null && entityCache.isEnabled(descriptor.getEntityClass())) {
+      return readCachedFile(indexElement, descriptor, relationIds);
+    }
     Object object = persister.load(repository, descriptor, indexElement.getPathInRepository(), relationIds);
-    SessionEntry sessionEntry = new SessionEntry(object, indexElement.getId(), descriptor.getVersion(object), indexElement.getNaturalId(), indexElement.getPathInRepository(), descriptor);
-    descriptor.writePathInRepo(object, indexElement.getPathInRepository());
 
     byte[] md5Sum = indexElement.getMd5Sum();
-    sessionEntry.setMd5(md5Sum);
     if (md5Sum == null) {
       try (FileInputStream stream = new FileInputStream(indexElement.getPathInRepository().toFile())) {
-        sessionEntry.setMd5(DigestUtils.md5(stream));
+        md5Sum = DigestUtils.md5(stream);
       } catch (IOException e) {
         log.error("Could not get md5sum from {}", indexElement.getPathInRepository(), e);
       }
     }
+    return new LoadedFile(indexElement, descriptor, object, relationIds, md5Sum);
+  }
+
+  private LoadedFile readCachedFile(IndexElement indexElement, EntityDescriptor descriptor, HashMap<Relation, Collection<String>> relationIds) {
+    Path path = indexElement.getPathInRepository();
+    byte[] md5Sum = indexElement.getMd5Sum();
+    byte[] contents = md5Sum == null ? null : entityCache.get(indexElement.getId(), md5Sum);
+    if (contents == null) {
+      try {
+        contents = Files.readAllBytes(path);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      md5Sum = DigestUtils.md5(contents);
+      entityCache.put(indexElement.getId(), md5Sum, contents);
+    }
+    Object object = descriptor.getPersister().load(repository, descriptor, path, contents, relationIds);
+    return new LoadedFile(indexElement, descriptor, object, relationIds, md5Sum);
+  }
+
+  private SessionEntry attach(LoadedFile file) {
+    IndexElement indexElement = file.element;
+    EntityDescriptor descriptor = file.descriptor;
+    Object object = file.object;
+    SessionEntry sessionEntry = new SessionEntry(object, indexElement.getId(), descriptor.getVersion(object), indexElement.getNaturalId(), indexElement.getPathInRepository(), descriptor);
+    descriptor.writePathInRepo(object, indexElement.getPathInRepository());
+    sessionEntry.setMd5(file.md5);
 
     Path rootFolder = descriptor.getFolderGenerator().getFolder(repository, repository.getPath(), object);
     boolean isChild = !rootFolder.equals(sessionEntry.getCompletePath().getParent());
@@ -266,7 +338,11 @@ public class Session implements TransactionResource {
 
     log.trace("Loaded {}", object);
     addToSession(sessionEntry);
+    return sessionEntry;
+  }
 
+  private void resolveRelations(SessionEntry sessionEntry, Map<Relation, Collection<String>> relationIds) {
+    Object object = sessionEntry.getObject();
     for (Map.Entry<Relation, Collection<String>> entry : relationIds.entrySet()) {
       Relation relation = entry.getKey();
       Collection<String> ids = entry.getValue();
@@ -277,14 +353,20 @@ public class Session implements TransactionResource {
         relation.setRelatedEntities(object, relatedEntities);
       }
     }
-    return sessionEntry;
   }
 
   private Object load(IndexElement indexElement) {
     SessionEntry sessionEntry = loadSessionEntry(indexElement);
+    afterLoad(sessionEntry);
+    return sessionEntry.getObject();
+  }
+
+  private void afterLoad(SessionEntry sessionEntry) {
     EntityDescriptor descriptor = sessionEntry.getEntityDescriptor();
     Object object = sessionEntry.getObject();
-    dirtyChecker.trackLoad(sessionEntry);
+    if (!readOnly) {
+      dirtyChecker.trackLoad(sessionEntry);
+    }
 
     Set<MethodHandle> lifeCycleMethods = descriptor.getLifeCycleMethods(LifeCycle.POST_LOAD);
     for (MethodHandle handle : lifeCycleMethods) {
@@ -294,7 +376,100 @@ public class Session implements TransactionResource {
         throw new RuntimeException(throwable);
       }
     }
-    return object;
+  }
+
+  /**
+   * Loads all elements which are not in the session yet together with their eager relations.
+   * The files are parsed in parallel on the executor of the repository, attaching them to the session is done on the calling thread.
+   */
+  private void loadElements(Collection<IndexElement> elements) {
+    ExecutorService executor = repository.getExecutorService();
+    Set<String> seen = new HashSet<>();
+    List<LoadedFile> loaded = new ArrayList<>();
+
+    Collection<IndexElement> next = elements;
+    while (!next.isEmpty()) {
+      List<IndexElement> toRead = next.stream()//
+        .filter(e -> !entriesById.containsKey(e.getId()))//
+        .filter(e -> seen.add(e.getId()))//
+        .sorted(Comparator.comparing(IndexElement::getPathInRepository))//
+        .collect(Collectors.toList());
+      List<LoadedFile> files;
+      if (executor == null || toRead.size() < 2) {
+        files = toRead.stream().map(this::readFile).collect(Collectors.toList());
+      } else {
+        List<CompletableFuture<LoadedFile>> futures = toRead.stream()//
+          .map(e -> CompletableFuture.supplyAsync(() -> readFile(e), executor))//
+          .collect(Collectors.toList());
+        files = futures.stream().map(Session::join).collect(Collectors.toList());
+      }
+      loaded.addAll(files);
+
+      next = files.stream()//
+        .flatMap(f -> f.relationIds.entrySet().stream())//
+        .filter(e -> !e.getKey().isLazy())//
+        .flatMap(e -> e.getValue().stream())//
+        .filter(id -> !seen.contains(id))//
+        .map(globalIndex::getById)//
+        .filter(Objects::nonNull)//
+        .collect(Collectors.toList());
+    }
+
+    List<SessionEntry> entries = loaded.stream().map(this::attach).collect(Collectors.toList());
+    for (int i = 0; i < entries.size(); i++) {
+      resolveRelations(entries.get(i), loaded.get(i).relationIds);
+    }
+    Lists.reverse(entries).forEach(this::afterLoad);
+  }
+
+  private static LoadedFile join(CompletableFuture<LoadedFile> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw e;
+    }
+  }
+
+  /**
+   * Loads all entities with the given ids, the files of entities not yet in the session are read in parallel.
+   *
+   * @return found entities in the order of the given ids, ids without entity or of another entity class are skipped
+   */
+  public <E> List<E> findByIds(Class<E> clazz, Collection<String> ids) {
+    Objects.requireNonNull(clazz);
+    Objects.requireNonNull(ids);
+    loadElements(ids.stream()//
+      .filter(id -> !entriesById.containsKey(id))//
+      .map(globalIndex::getById)//
+      .filter(Objects::nonNull)//
+      .filter(element -> clazz.isAssignableFrom(element.getEntityClass()))//
+      .collect(Collectors.toList()));
+    return ids.stream().map(entriesById::get).filter(Objects::nonNull)//
+      .map(SessionEntry::getObject)//
+      .filter(clazz::isInstance)//
+      .map(clazz::cast)//
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Natural id equivalent of {@link #findByIds(Class, Collection)}.
+   */
+  public <E> List<E> findByNaturalIds(Class<E> clazz, Collection<? extends Serializable> naturalIds) {
+    Objects.requireNonNull(clazz);
+    Objects.requireNonNull(naturalIds);
+    List<NaturalId> realNaturalIds = naturalIds.stream().map(id -> new NaturalId(clazz, id)).collect(Collectors.toList());
+    loadElements(realNaturalIds.stream()//
+      .filter(id -> !entriesByNaturalId.containsKey(id))//
+      .map(globalIndex::getByNaturalId)//
+      .filter(Objects::nonNull)//
+      .filter(element -> clazz.isAssignableFrom(element.getEntityClass()))//
+      .collect(Collectors.toList()));
+    return realNaturalIds.stream().map(entriesByNaturalId::get).filter(Objects::nonNull)//
+      .map(SessionEntry::getObject)//
+      .filter(clazz::isInstance)//
+      .map(clazz::cast)//
+      .collect(Collectors.toList());
   }
 
   private void addToSession(SessionEntry sessionEntry) {
@@ -327,6 +502,9 @@ public class Session implements TransactionResource {
 
   @Override
   public void prepare() {
+    if (readOnly) {
+      return;
+    }
     Set<SessionEntry> renamed = handleRenames();
 
     Collection<SessionEntry> dirty = dirtyChecker.findDirty(new HashSet<>(this.entriesById.values()));
@@ -382,25 +560,33 @@ public class Session implements TransactionResource {
     if (isRollbackonly()) {
       return;
     }
-    for (SessionAction action : actions) {
-      try {
-        action.commit(this);
-      } catch (RuntimeException e) {
-        rollbackonly = true;
-        throw e;
+    try {
+      for (SessionAction action : actions) {
+        try {
+          action.commit(this);
+        } catch (RuntimeException e) {
+          rollbackonly = true;
+          throw e;
+        }
+      }
+    } finally {
+      globalIndex.syncChangeLog();
+      if (entityCache != null) {
+        actions.forEach(action -> entityCache.invalidate(action.sessionEntry.getId()));
       }
+      applyLuceneUpdates();
     }
+  }
 
-    if (isRollbackonly()) {
-      return;
-    }
+  /**
+   * Also called if an action failed to commit, the actions committed before got a sequence in the global index which has to reach lucene.
+   */
+  private void applyLuceneUpdates() {
     TimeProfiler profiler = new TimeProfiler("Lucene update").start();
     luceneUpdates.forEach(u -> u.accept(luceneIndex));
+    luceneUpdates.clear();
+    luceneTicket = luceneIndex.getLastTicket();
     profiler.stop().logDebug(log);
-
-    if (isRollbackonly()) {
-      return;
-    }
   }
 
   @Override
@@ -417,13 +603,24 @@ public class Session implements TransactionResource {
     }
   }
 
+  /**
+   * Blocks until the lucene updates of the last commit are searchable, only needed if lucene updates are asynchronous.
+   */
+  public void awaitSearchable() {
+    luceneIndex.awaitSearchable(luceneTicket);
+  }
+
+  /**
+   * Runs the function with a shared searcher, the searcher must not be used after the function returned.
+   */
   public <E> E lucene(LuceneReadFunction<E> read) {
-    IndexReader reader = luceneIndex.getIndexReader();
+    IndexSearcher indexSearcher = luceneIndex.acquireSearcher();
     try {
-      IndexSearcher indexSearcher = new IndexSearcher(reader);
       return read.apply(indexSearcher);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      luceneIndex.releaseSearcher(indexSearcher);
     }
   }
 
@@ -463,15 +660,221 @@ public class Session implements TransactionResource {
     return builder.query(query, filter).find();
   }
 
+  /**
+   * Finds all entities whose query value equals the given value via the inverted value index of the global index.
+   */
+  public <R, E, V> Set<R> queryEquals(Class<R> resultClass, Query<E, V> query, V value) {
+    Objects.requireNonNull(value);
+    Collection<IndexElement> elements = globalIndex.getValueIndex(query).equal(value);
+    return queryIndexed(resultClass, query, elements, value::equals);
+  }
+
+  /**
+   * Finds all entities whose query value equals one of the given values.
+   */
+  public <R, E, V> Set<R> queryIn(Class<R> resultClass, Query<E, V> query, Collection<V> values) {
+    Set<V> valueSet = new HashSet<>(values);
+    Collection<IndexElement> elements = globalIndex.getValueIndex(query).in(valueSet);
+    return queryIndexed(resultClass, query, elements, valueSet::contains);
+  }
+
+  /**
+   * Finds all entities whose query value lies in the given range, a null bound is unbounded.
+   * Uses the sorted value index of the global index, entities of this session are checked directly.
+   */
+  public <R, E, V extends Comparable<? super V>> Set<R> queryRange(Class<R> resultClass, Query<E, V> query, @Nullable V from, boolean fromInclusive, @Nullable V to, boolean toInclusive) {
+    Collection<IndexElement> elements = globalIndex.getValueIndex(query).range(from, fromInclusive, to, toInclusive);
+    return queryIndexed(resultClass, query, elements, value -> isInRange(value, from, fromInclusive, to, toInclusive));
+  }
+
+  public <R, E> Set<R> queryPrefix(Class<R> resultClass, Query<E, String> query, String prefix) {
+    Collection<IndexElement> elements = globalIndex.getValueIndex(query).prefix(prefix);
+    return queryIndexed(resultClass, query, elements, value -> value.startsWith(prefix));
+  }
+
+  public <R, E, V extends Comparable<? super V>> Optional<V> queryMin(Class<R> resultClass, Query<E, V> query) {
+    return queryFirstValue(resultClass, query, true);
+  }
+
+  public <R, E, V extends Comparable<? super V>> Optional<V> queryMax(Class<R> resultClass, Query<E, V> query) {
+    return queryFirstValue(resultClass, query, false);
+  }
+
+  /**
+   * The entities not yet in the session are loaded in one batch.
+   *
+   * @return all entities with a value for the given query, ordered by that value
+   */
+  @SuppressWarnings("unchecked")
+  public <R, E, V extends Comparable<? super V>> List<R> queryOrdered(Class<R> resultClass, Query<E, V> query, boolean ascending) {
+    ArrayList<Map.Entry<Object, String>> valueToId = new ArrayList<>();
+    for (Map.Entry<Object, Set<IndexElement>> entry : globalIndex.getValueIndex(query).ordered(true).entrySet()) {
+      entry.getValue().stream().filter(element -> isFromIndex(resultClass, element))//
+        .forEach(element -> valueToId.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), element.getId())));
+    }
+    sessionEntries(resultClass, query).forEach(entry -> {
+      V value = query.getValue((E) entry.getObject());
+      if (value != null) {
+        valueToId.add(new AbstractMap.SimpleImmutableEntry<>(value, entry.getId()));
+      }
+    });
+    Comparator<Object> order = ascending ? QueryValueIndex.VALUE_ORDER : QueryValueIndex.VALUE_ORDER.reversed();
+    valueToId.sort(Map.Entry.comparingByKey(order));
+    return findByIds(resultClass, valueToId.stream().map(Map.Entry::getValue).collect(Collectors.toList()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R, E, V> Optional<V> queryFirstValue(Class<R> resultClass, Query<E, V> query, boolean ascending) {
+    checkRelated(resultClass, query);
+    Object fromIndex = null;
+    for (Map.Entry<Object, Set<IndexElement>> entry : globalIndex.getValueIndex(query).ordered(ascending).entrySet()) {
+      if (entry.getValue().stream().anyMatch(element -> isFromIndex(resultClass, element))) {
+        fromIndex = entry.getKey();
+        break;
+      }
+    }
+    Stream<Object> fromSession = sessionEntries(resultClass, query).map(entry -> (Object) query.getValue((E) entry.getObject())).filter(Objects::nonNull);
+    Comparator<Object> order = ascending ? QueryValueIndex.VALUE_ORDER : QueryValueIndex.VALUE_ORDER.reversed();
+    return Stream.concat(fromIndex == null ? Stream.empty() : Stream.of(fromIndex), fromSession).min(order).map(value -> (V) value);
+  }
+
+  /**
+   * Combines the given index elements with the matching entities of this session.
+   * Index elements of entities contained in this session are ignored.
+   */
+  @SuppressWarnings("unchecked")
+  private <R, E, V> Set<R> queryIndexed(Class<R> resultClass, Query<E, V> query, Collection<IndexElement> elements, Predicate<V> sessionFilter) {
+    checkRelated(resultClass, query);
+    LinkedHashSet<String> ids = elements.stream()//
+      .filter(element -> isFromIndex(resultClass, element))//
+      .map(IndexElement::getId)//
+      .collect(Collectors.toCollection(LinkedHashSet::new));
+    sessionEntries(resultClass, query)//
+      .filter(entry -> {
+        V value = query.getValue((E) entry.getObject());
+        return value != null && sessionFilter.test(value);
+      })//
+      .forEach(entry -> ids.add(entry.getId()));
+    return new LinkedHashSet<>(findByIds(resultClass, ids));
+  }
+
+  private boolean isFromIndex(Class<?> resultClass, IndexElement element) {
+    return !entriesById.containsKey(element.getId()) && resultClass.isAssignableFrom(element.getEntityClass());
+  }
+
+  private Stream<SessionEntry> sessionEntries(Class<?> resultClass, Query<?, ?> query) {
+    return new ArrayList<>(entriesById.values()).stream()//
+      .filter(entry -> resultClass.isInstance(entry.getObject()) && query.getOwnerClass().isInstance(entry.getObject()));
+  }
+
+  private static boolean isInRange(Object value, @Nullable Object from, boolean fromInclusive, @Nullable Object to, boolean toInclusive) {
+    if (from != null) {
+      int compare = QueryValueIndex.compareValues(value, from);
+      if (compare < 0 || (compare == 0 && !fromInclusive)) {
+        return false;
+      }
+    }
+    if (to != null) {
+      int compare = QueryValueIndex.compareValues(value, to);
+      if (compare > 0 || (compare == 0 && !toInclusive)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public <E> MultiQueyBuilder<E> multiQuery(Class<E> resultClass) {
     return new MultiQueyBuilder<>(this, resultClass);
   }
 
+  /**
+   * Searches one page of entities of the given class, only the committed state is searched.
+   *
+   * @param sort the order of the hits, null for relevance
+   */
+  @SuppressWarnings("unchecked")
+  public <E> SearchResult<E> search(Class<E> resultClass, org.apache.lucene.search.Query query, int offset, int limit, @Nullable Sort sort) {
+    if (offset < 0 || limit < 0) {
+      throw new IllegalArgumentException("Offset and limit must not be negative, offset=" + offset + " limit=" + limit);
+    }
+    return lucene(searcher -> {
+      int numHits = (int) Math.max(1, Math.min((long) offset + limit, searcher.getIndexReader().maxDoc()));//the collectors preallocate their queue
+      TopDocsCollector<?> topDocs = sort == null ? TopScoreDocCollector.create(numHits) : TopFieldCollector.create(sort, numHits, false, false, false);
+      searcher.search(restrictTo(resultClass, query), topDocs);
+      List<String> ids = LuceneIdReader.read(searcher.getIndexReader(), topDocs.topDocs(offset, limit).scoreDocs);
+      return new SearchResult<>(ids, offset, topDocs.getTotalHits(), page -> (List<E>) loadAll(page));
+    });
+  }
+
+  /**
+   * Counts the hits of the query per value of the given field, only the committed state is searched.
+   * The field needs sorted or sorted set doc values, eg. strings, enums or collections indexed by the {@link de.ks.flatadocdb.defaults.ReflectionLuceneDocumentExtractor}.
+   *
+   * @return value to count, ordered by descending count
+   */
+  public Map<String, Integer> facets(Class<?> resultClass, org.apache.lucene.search.Query query, String field) {
+    Map<String, Integer> counts = lucene(searcher -> {
+      FacetCollector collector = new FacetCollector(field);
+      searcher.search(restrictTo(resultClass, query), collector);
+      collector.flush();
+      return collector.counts;
+    });
+    LinkedHashMap<String, Integer> retval = new LinkedHashMap<>();
+    counts.entrySet().stream().sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))//
+      .forEach(entry -> retval.put(entry.getKey(), entry.getValue()));
+    return retval;
+  }
+
+  /**
+   * Adds the cached entity class filter of the lucene index if not all entities are of the given class.
+   */
+  private org.apache.lucene.search.Query restrictTo(Class<?> resultClass, org.apache.lucene.search.Query query) {
+    boolean allEntities = metaModel.getEntities().stream().allMatch(descriptor -> resultClass.isAssignableFrom(descriptor.getEntityClass()));
+    if (allEntities) {
+      return query;
+    }
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    builder.add(query, BooleanClause.Occur.MUST);
+    builder.add(luceneIndex.getEntityClassFilter(resultClass), BooleanClause.Occur.FILTER);
+    return builder.build();
+  }
+
+  /**
+   * Loads the given entities in the order of their files, index lookups are done before any file is read.
+   *
+   * @return the entities in the order of the given ids
+   */
+  private List<Object> loadAll(List<String> ids) {
+    loadElements(ids.stream().filter(id -> !entriesById.containsKey(id))//
+      .map(globalIndex::getById)//
+      .filter(Objects::nonNull)//
+      .collect(Collectors.toList()));
+    return ids.stream().map(this::findById).collect(Collectors.toList());
+  }
+
+  /**
+   * Combines structured predicates over query values with full text queries into one lucene query.
+   * Only the committed state is searched, changes of this session are not visible.
+   */
+  public <E> LuceneQueryBuilder<E> luceneQuery(Class<E> resultClass) {
+    return new LuceneQueryBuilder<>(this, resultClass);
+  }
+
   @FunctionalInterface
   public interface LuceneReadFunction<R> {
     R apply(IndexSearcher searcher) throws IOException;
   }
 
+  private void checkWritable(Object entity) {
+    if (readOnly) {
+      throw new ReadOnlySessionException("Cannot modify " + entity + " in a read only session");
+    }
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
   private void checkRollbackOnly() {
     if (rollbackonly) {
       throw new IllegalStateException("Session marked as rollback only");
@@ -482,6 +885,14 @@ public class Session implements TransactionResource {
     return rollbackonly;
   }
 
+  private static void checkRelated(Class<?> resultClass, Query<?, ?> query) {
+    boolean isSubtype = resultClass.isAssignableFrom(query.getOwnerClass());
+    boolean isSuperType = query.getOwnerClass().isAssignableFrom(resultClass);
+    if (!isSubtype && !isSuperType) {
+      throw new IllegalArgumentException("Given query class " + query.getOwnerClass() + " and expected result class " + resultClass + " are totally unrelated.");
+    }
+  }
+
   public static class MultiQueyBuilder<E> {
     private final Session session;
     private final Class<E> resultClass;
@@ -494,16 +905,10 @@ public class Session implements TransactionResource {
 
     @SuppressWarnings("unchecked")
     public <V> MultiQueyBuilder<E> query(Query<?, V> query, Predicate<V> filter) {
-      boolean isSubtype = resultClass.isAssignableFrom(query.getOwnerClass());
-      boolean isSuperType = ReflectionUtils.getAllSuperTypes(resultClass).contains(query.getOwnerClass());
-
-      if (isSubtype || isSuperType) {
-        Query<E, Object> cast = (Query<E, Object>) query;
-        queries.put(cast, (Predicate<Object>) filter);
-        return this;
-      } else {
-        throw new IllegalArgumentException("Given query class " + query.getOwnerClass() + " and expected result class " + resultClass + " are totally unrelated.");
-      }
+      checkRelated(resultClass, query);
+      Query<E, Object> cast = (Query<E, Object>) query;
+      queries.put(cast, (Predicate<Object>) filter);
+      return this;
     }
 
     public Set<E> find() {
@@ -511,12 +916,20 @@ public class Session implements TransactionResource {
       queries.keySet().forEach(query -> {
         Map<IndexElement, ? extends Optional<?>> queryElements = session.globalIndex.getQueryElements(query);
 
-        queryElements.entrySet().stream()//
-          .filter(e -> !session.entriesById.keySet().contains(e.getKey().getId()))//
-          .filter(e -> resultClass.isAssignableFrom(e.getKey().getEntityClass()))//
-          .forEach(entry -> {
-            Map<Query<E, Object>, Object> map = indexElementMapHashMap.compute(entry.getKey().getId(), (indexElement, queryObjectMap) -> queryObjectMap == null ? new HashMap<Query<E, Object>, Object>() : queryObjectMap);
-            map.put(query, entry.getValue().orElse(null));
+        //visit the smaller one of the result class partitions and the query elements
+        Stream<IndexElement> candidates;
+        if (session.globalIndex.getCountOfType(resultClass) < queryElements.size()) {
+          candidates = session.globalIndex.getAllOfType(resultClass).stream();
+        } else {
+          candidates = queryElements.keySet().stream().filter(e -> resultClass.isAssignableFrom(e.getEntityClass()));
+        }
+        candidates.filter(e -> !session.entriesById.keySet().contains(e.getId()))//
+          .forEach(element -> {
+            Optional<?> value = queryElements.get(element);
+            if (value != null) {
+              Map<Query<E, Object>, Object> map = indexElementMapHashMap.compute(element.getId(), (indexElement, queryObjectMap) -> queryObjectMap == null ? new HashMap<Query<E, Object>, Object>() : queryObjectMap);
+              map.put(query, value.orElse(null));
+            }
           });
 
         new ArrayList<>(session.entriesById.values()).stream()//
@@ -551,4 +964,155 @@ public class Session implements TransactionResource {
         .collect(Collectors.toSet());
     }
   }
+
+  /**
+   * Builds a single lucene query out of structured predicates({@link LuceneQueryFields}) and full text queries.
+   */
+  public static class LuceneQueryBuilder<E> {
+    private final Session session;
+    private final Class<E> resultClass;
+    private final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    private boolean empty = true;
+
+    public LuceneQueryBuilder(Session session, Class<E> resultClass) {
+      this.session = session;
+      this.resultClass = resultClass;
+    }
+
+    public <V> LuceneQueryBuilder<E> equal(Query<?, V> query, V value) {
+      return filter(query, LuceneQueryFields.equal(query, value));
+    }
+
+    public <V> LuceneQueryBuilder<E> in(Query<?, V> query, Collection<V> values) {
+      return filter(query, LuceneQueryFields.in(query, values));
+    }
+
+    public <V extends Comparable<? super V>> LuceneQueryBuilder<E> range(Query<?, V> query, @Nullable V from, boolean fromInclusive, @Nullable V to, boolean toInclusive) {
+      return filter(query, LuceneQueryFields.range(query, from, fromInclusive, to, toInclusive));
+    }
+
+    /**
+     * Adds a full text query which has to match.
+     */
+    public LuceneQueryBuilder<E> fullText(org.apache.lucene.search.Query query) {
+      builder.add(query, BooleanClause.Occur.MUST);
+      empty = false;
+      return this;
+    }
+
+    private LuceneQueryBuilder<E> filter(Query<?, ?> query, org.apache.lucene.search.Query luceneQuery) {
+      checkRelated(resultClass, query);
+      builder.add(luceneQuery, BooleanClause.Occur.FILTER);
+      empty = false;
+      return this;
+    }
+
+    public org.apache.lucene.search.Query build() {
+      return empty ? new MatchAllDocsQuery() : builder.build();
+    }
+
+    /**
+     * @return ids of all matching entities of the result class
+     */
+    public Set<String> findIds() {
+      return session.lucene(searcher -> {
+        IdCollector collector = new IdCollector();
+        searcher.search(session.restrictTo(resultClass, build()), collector);
+        return collector.ids;
+      });
+    }
+
+    public Map<String, Integer> facets(String field) {
+      return session.facets(resultClass, build(), field);
+    }
+
+    public SearchResult<E> search(int offset, int limit, @Nullable Sort sort) {
+      return session.search(resultClass, build(), offset, limit, sort);
+    }
+
+    public Set<E> find() {
+      return new LinkedHashSet<>(session.findByIds(resultClass, findIds()));
+    }
+  }
+
+  private static class IdCollector extends SimpleCollector {
+    private final Set<String> ids = new LinkedHashSet<>();
+    private LuceneIdReader reader;
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+      reader = new LuceneIdReader(context.reader());
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      ids.add(reader.get(doc));
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+  }
+
+  private static class FacetCollector extends SimpleCollector {
+    private final String field;
+    private final Map<String, Integer> counts = new HashMap<>();
+    private SortedSetDocValues values;
+    private int[] segmentCounts;
+
+    FacetCollector(String field) {
+      this.field = field;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+      flush();
+      values = DocValues.getSortedSet(context.reader(), field);
+      segmentCounts = new int[(int) values.getValueCount()];
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      values.setDocument(doc);
+      for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+        segmentCounts[(int) ord]++;
+      }
+    }
+
+    /**
+     * Ordinals are per segment, so the counts are resolved to their values after each segment.
+     */
+    void flush() {
+      if (values != null) {
+        for (int ord = 0; ord < segmentCounts.length; ord++) {
+          if (segmentCounts[ord] > 0) {
+            counts.merge(values.lookupOrd(ord).utf8ToString(), segmentCounts[ord], Integer::sum);
+          }
+        }
+        values = null;
+      }
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+  }
+
+  private static final class LoadedFile {
+    private final IndexElement element;
+    private final EntityDescriptor descriptor;
+    private final Object object;
+    private final Map<Relation, Collection<String>> relationIds;
+    private final byte[] md5;
+
+    private LoadedFile(IndexElement element, EntityDescriptor descriptor, Object object, Map<Relation, Collection<String>> relationIds, byte[] md5) {
+      this.element = element;
+      this.descriptor = descriptor;
+      this.object = object;
+      this.relationIds = relationIds;
+      this.md5 = md5;
+    }
+  }
 }
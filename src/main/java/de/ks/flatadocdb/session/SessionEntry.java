@@ -17,6 +17,7 @@
 package de.ks.flatadocdb.session;
 
 import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import de.ks.flatadocdb.session.dirtycheck.EntitySnapshot;
 
 import java.nio.file.Path;
 
@@ -29,6 +30,8 @@ public class SessionEntry {
   private final EntityDescriptor entityDescriptor;
   protected byte[] md5;
   protected boolean child;
+  protected long indexSequence;
+  protected EntitySnapshot snapshot;
 
   public SessionEntry(Object object, String id, long version, NaturalId naturalId, Path completePath, EntityDescriptor entityDescriptor) {
     this.object = object;
@@ -79,6 +82,17 @@ public class SessionEntry {
     return entityDescriptor;
   }
 
+  /**
+   * @return sequence the global index assigned to the last change of this entry, 0 if none
+   */
+  public long getIndexSequence() {
+    return indexSequence;
+  }
+
+  public void setIndexSequence(long indexSequence) {
+    this.indexSequence = indexSequence;
+  }
+
   public boolean isChild() {
     return child;
   }
@@ -87,6 +101,17 @@ public class SessionEntry {
     this.child = child;
   }
 
+  /**
+   * @return state when the entity was loaded, null for new entities
+   */
+  public EntitySnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public void setSnapshot(EntitySnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
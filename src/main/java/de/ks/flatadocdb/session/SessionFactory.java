@@ -24,6 +24,7 @@ import de.ks.flatadocdb.session.transaction.local.Transactional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -36,6 +37,7 @@ public class SessionFactory implements AutoCloseable {
   private static final Logger log = LoggerFactory.getLogger(SessionFactory.class);
   private final Map<String, Repository> repositoryByName = new HashMap<>();
   private final MetaModel metaModel = new MetaModel();
+  private volatile EntityCache entityCache;
   private final ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),//
     new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SessionFactoryPooled-%d").build());
 
@@ -86,7 +88,7 @@ public class SessionFactory implements AutoCloseable {
     if (!repositoryByName.containsKey(repository.getName())) {
       addRepository(repository);
     }
-    return new Session(metaModel, repository);
+    return new Session(metaModel, repository, false, entityCache);
   }
 
   public Session openSession() {
@@ -97,10 +99,52 @@ public class SessionFactory implements AutoCloseable {
     }
   }
 
+  /**
+   * Opens a session which can only read, see {@link Session#Session(MetaModel, Repository, boolean)}.
+   */
+  public Session openReadOnlySession(Repository repository) {
+    Objects.requireNonNull(repository, "Repository is required");
+    if (!repositoryByName.containsKey(repository.getName())) {
+      addRepository(repository);
+    }
+    return new Session(metaModel, repository, true, entityCache);
+  }
+
+  public Session openReadOnlySession() {
+    if (repositoryByName.size() == 1) {
+      return openReadOnlySession(repositoryByName.values().iterator().next());
+    } else {
+      throw new IllegalStateException("Requested to open a session without a specified repository.");
+    }
+  }
+
+  /**
+   * Opens a stateless session for large imports, see {@link BulkSession}.
+   */
+  public BulkSession openBulkSession(Repository repository, int batchSize) {
+    Objects.requireNonNull(repository, "Repository is required");
+    if (!repositoryByName.containsKey(repository.getName())) {
+      addRepository(repository);
+    }
+    return new BulkSession(metaModel, repository, batchSize);
+  }
+
   public MetaModel getMetaModel() {
     return metaModel;
   }
 
+  /**
+   * Shares the given cache between all sessions opened afterwards, null disables it.
+   */
+  public void setEntityCache(@Nullable EntityCache entityCache) {
+    this.entityCache = entityCache;
+  }
+
+  @Nullable
+  public EntityCache getEntityCache() {
+    return entityCache;
+  }
+
   public void transactedSession(Consumer<Session> sessionConsumer) {
     if (repositoryByName.size() == 1) {
       Repository repository = repositoryByName.values().iterator().next();
@@ -127,10 +171,12 @@ public class SessionFactory implements AutoCloseable {
     }
   }
 
+  /**
+   * Uses a read only session, it is not registered in the transaction as there is nothing to flush.
+   */
   public <T> T transactedSessionRead(Repository repository, Function<Session, T> sessionFunction) {
     return Transactional.withNewTransaction(() -> {
-      Session session = openSession(repository);
-      TransactionProvider.instance.registerResource(session);
+      Session session = openReadOnlySession(repository);
       return sessionFunction.apply(session);
     });
   }
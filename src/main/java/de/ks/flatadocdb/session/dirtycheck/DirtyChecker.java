@@ -32,8 +32,8 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
- * Very simple dirty checker right now.
- * Need to balloon it up to something hibernate uses, storing the initial state and then comparing all fields
+ * Compares the fields of loaded entities with the {@link EntitySnapshot} taken when they were loaded.
+ * Only entities with changed fields or without comparable snapshot are serialized and compared with the md5 of their file.
  */
 public class DirtyChecker {
   private static final Logger log = LoggerFactory.getLogger(DirtyChecker.class);
@@ -48,7 +48,7 @@ public class DirtyChecker {
   }
 
   public void trackLoad(SessionEntry sessionEntry) {
-    //maybe store initial state und do comparison like hibernate?
+    sessionEntry.setSnapshot(EntitySnapshot.capture(sessionEntry.getEntityDescriptor(), sessionEntry.getObject()));
   }
 
   public void trackPersist(SessionEntry sessionEntry) {
@@ -65,6 +65,11 @@ public class DirtyChecker {
       .filter(e -> !deletions.contains(e.getObject()))//
       .filter(e -> {
         EntityDescriptor entityDescriptor = e.getEntityDescriptor();
+        EntitySnapshot snapshot = e.getSnapshot();
+        if (snapshot != null && snapshot.isUnchanged(entityDescriptor, e.getObject())) {
+          log.trace("Unchanged entity {} {}", e.getObject(), e.getFileName());
+          return false;
+        }
         EntityPersister persister = entityDescriptor.getPersister();
         byte[] fileContents = persister.createFileContents(repository, entityDescriptor, e.getObject());
         byte[] md5 = DigestUtils.md5(fileContents);
@@ -0,0 +1,241 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session.dirtycheck;
+
+import com.google.common.primitives.Primitives;
+import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import de.ks.flatadocdb.metamodel.PersistentField;
+import de.ks.flatadocdb.session.relation.RelationCollection;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * State of an entity when it was loaded, one value per {@link PersistentField} of its {@link EntityDescriptor}.
+ * Values of immutable types are kept, collections, maps and arrays are copied and related entities are compared by identity.
+ * If a field contains a value of another type the snapshot is not comparable and the entity has to be serialized to check it.
+ */
+public class EntitySnapshot {
+  private static final Object UNCOMPARABLE = new Object();
+
+  private final Object[] values;
+  private final boolean comparable;
+
+  protected EntitySnapshot(Object[] values, boolean comparable) {
+    this.values = values;
+    this.comparable = comparable;
+  }
+
+  public static EntitySnapshot capture(EntityDescriptor descriptor, Object entity) {
+    List<PersistentField> fields = descriptor.getPersistentFields();
+    Object[] values = new Object[fields.size()];
+    for (int i = 0; i < values.length; i++) {
+      PersistentField field = fields.get(i);
+      Object value = field.getValue(entity);
+      values[i] = field.isRelation() ? captureRelation(value) : capture(value);
+      if (values[i] == UNCOMPARABLE) {
+        return new EntitySnapshot(null, false);
+      }
+    }
+    return new EntitySnapshot(values, true);
+  }
+
+  public boolean isComparable() {
+    return comparable;
+  }
+
+  /**
+   * @return true if no field changed since the snapshot was taken, false if a field changed or the snapshot is not comparable
+   */
+  public boolean isUnchanged(EntityDescriptor descriptor, Object entity) {
+    if (!comparable) {
+      return false;
+    }
+    List<PersistentField> fields = descriptor.getPersistentFields();
+    for (int i = 0; i < values.length; i++) {
+      PersistentField field = fields.get(i);
+      Object value = field.getValue(entity);
+      boolean same = field.isRelation() ? matchesRelation(values[i], value) : matches(values[i], value);
+      if (!same) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lazy collections which are not loaded yet are not touched, if they are loaded later the entity is serialized to check it.
+   */
+  private static Object captureRelation(Object value) {
+    if (value instanceof RelationCollection && !((RelationCollection<?, ?, ?>) value).isLoaded()) {
+      return new Unloaded(value);
+    } else if (value instanceof Collection) {
+      return new Related(value.getClass(), ((Collection<?>) value).toArray());
+    } else if (value instanceof Map) {
+      return UNCOMPARABLE;
+    } else {
+      return value;
+    }
+  }
+
+  private static boolean matchesRelation(Object snapshot, Object value) {
+    if (snapshot instanceof Unloaded) {
+      return value == ((Unloaded) snapshot).collection && !((RelationCollection<?, ?, ?>) value).isLoaded();
+    } else if (snapshot instanceof Related) {
+      Related related = (Related) snapshot;
+      if (value == null || value.getClass() != related.type || ((Collection<?>) value).size() != related.elements.length) {
+        return false;
+      }
+      int i = 0;
+      for (Object element : (Collection<?>) value) {
+        if (element != related.elements[i++]) {
+          return false;
+        }
+      }
+      return true;
+    } else {
+      return snapshot == value;
+    }
+  }
+
+  private static Object capture(Object value) {
+    if (value == null || isImmutable(value)) {
+      return value;
+    }
+    Class<?> type = value.getClass();
+    if (type.isArray() && type.getComponentType().isPrimitive()) {
+      int length = Array.getLength(value);
+      Object copy = Array.newInstance(type.getComponentType(), length);
+      System.arraycopy(value, 0, copy, 0, length);
+      return copy;
+    } else if (type.isArray()) {
+      Object[] elements = captureAll(Arrays.asList((Object[]) value));
+      return elements == null ? UNCOMPARABLE : new Elements(type, elements);
+    } else if (value instanceof Collection) {
+      Object[] elements = captureAll((Collection<?>) value);
+      return elements == null ? UNCOMPARABLE : new Elements(type, elements);
+    } else if (value instanceof Map) {
+      Object[] keys = captureAll(((Map<?, ?>) value).keySet());
+      Object[] values = captureAll(((Map<?, ?>) value).values());
+      return keys == null || values == null ? UNCOMPARABLE : new Entries(type, keys, values);
+    } else {
+      return UNCOMPARABLE;
+    }
+  }
+
+  private static Object[] captureAll(Collection<?> collection) {
+    Object[] retval = new Object[collection.size()];
+    int i = 0;
+    for (Object element : collection) {
+      Object captured = capture(element);
+      if (captured == UNCOMPARABLE) {
+        return null;
+      }
+      retval[i++] = captured;
+    }
+    return retval;
+  }
+
+  private static boolean matches(Object snapshot, Object value) {
+    if (snapshot == null || value == null) {
+      return snapshot == value;
+    } else if (snapshot instanceof Elements) {
+      Elements elements = (Elements) snapshot;
+      if (value.getClass() != elements.type) {
+        return false;
+      }
+      Collection<?> collection = value instanceof Collection ? (Collection<?>) value : Arrays.asList((Object[]) value);
+      return matchesAll(elements.elements, collection);
+    } else if (snapshot instanceof Entries) {
+      Entries entries = (Entries) snapshot;
+      if (value.getClass() != entries.type) {
+        return false;
+      }
+      Map<?, ?> map = (Map<?, ?>) value;
+      return matchesAll(entries.keys, map.keySet()) && matchesAll(entries.values, map.values());
+    } else if (snapshot.getClass().isArray()) {
+      return Objects.deepEquals(snapshot, value);
+    } else {
+      return snapshot.equals(value);
+    }
+  }
+
+  private static boolean matchesAll(Object[] snapshot, Collection<?> values) {
+    if (snapshot.length != values.size()) {
+      return false;
+    }
+    int i = 0;
+    for (Object value : values) {
+      if (!matches(snapshot[i++], value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isImmutable(Object value) {
+    Class<?> type = value.getClass();
+    return value instanceof String || Primitives.isWrapperType(type) || value instanceof Enum//
+      || type.getName().startsWith("java.time.") || value instanceof Path || value instanceof URI//
+      || value instanceof BigDecimal || value instanceof BigInteger || value instanceof UUID || value instanceof Class;
+  }
+
+  private static final class Unloaded {
+    private final Object collection;
+
+    private Unloaded(Object collection) {
+      this.collection = collection;
+    }
+  }
+
+  private static final class Related {
+    private final Class<?> type;
+    private final Object[] elements;
+
+    private Related(Class<?> type, Object[] elements) {
+      this.type = type;
+      this.elements = elements;
+    }
+  }
+
+  private static final class Elements {
+    private final Class<?> type;
+    private final Object[] elements;
+
+    private Elements(Class<?> type, Object[] elements) {
+      this.type = type;
+      this.elements = elements;
+    }
+  }
+
+  private static final class Entries {
+    private final Class<?> type;
+    private final Object[] keys;
+    private final Object[] values;
+
+    private Entries(Class<?> type, Object[] keys, Object[] values) {
+      this.type = type;
+      this.keys = keys;
+      this.values = values;
+    }
+  }
+}
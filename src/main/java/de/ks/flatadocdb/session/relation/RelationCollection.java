@@ -43,6 +43,10 @@ public class RelationCollection<E, DelegateType extends Collection<E>, IdCollect
     this.session = session;
   }
 
+  public boolean isLoaded() {
+    return loaded.get();
+  }
+
   protected void checkInitialize() {
     if (!loaded.get()) {
       session.checkCorrectThread();
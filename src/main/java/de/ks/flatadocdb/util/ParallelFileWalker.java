@@ -0,0 +1,103 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree with one fork/join task per directory.
+ * Directories not accepted by the directory filter are not entered, files not accepted by the file filter are skipped.
+ * Files are streamed to the consumer together with their attributes, the consumer is called concurrently.
+ * Files vanishing during the walk are ignored.
+ */
+public class ParallelFileWalker {
+  private static final Logger log = LoggerFactory.getLogger(ParallelFileWalker.class);
+
+  private final ForkJoinPool pool;
+  private final Predicate<Path> directoryFilter;
+  private final Predicate<Path> fileFilter;
+
+  public ParallelFileWalker(Predicate<Path> directoryFilter, Predicate<Path> fileFilter) {
+    this(ForkJoinPool.commonPool(), directoryFilter, fileFilter);
+  }
+
+  public ParallelFileWalker(ForkJoinPool pool, Predicate<Path> directoryFilter, Predicate<Path> fileFilter) {
+    this.pool = pool;
+    this.directoryFilter = directoryFilter;
+    this.fileFilter = fileFilter;
+  }
+
+  public void walk(Path root, BiConsumer<Path, BasicFileAttributes> consumer) {
+    pool.invoke(new DirectoryTask(root, consumer));
+  }
+
+  class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Path directory;
+    private final BiConsumer<Path, BasicFileAttributes> consumer;
+
+    DirectoryTask(Path directory, BiConsumer<Path, BasicFileAttributes> consumer) {
+      this.directory = directory;
+      this.consumer = consumer;
+    }
+
+    @Override
+    protected void compute() {
+      List<DirectoryTask> subTasks = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path child : stream) {
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (NoSuchFileException e) {
+            log.trace("File {} vanished during walk", child);
+            continue;
+          }
+          if (attributes.isDirectory()) {
+            if (directoryFilter.test(child)) {
+              subTasks.add(new DirectoryTask(child, consumer));
+            } else {
+              log.trace("Skipping directory {}", child);
+            }
+          } else if (fileFilter.test(child)) {
+            consumer.accept(child, attributes);
+          }
+        }
+      } catch (NoSuchFileException e) {
+        log.trace("Directory {} vanished during walk", directory);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      invokeAll(subTasks);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb;
+
+import de.ks.flatadocdb.index.GlobalIndex;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class RepositoryTest {
+  @Rule
+  public TempRepository tempRepository = new TempRepository();
+
+  @Test
+  public void testWalkSkipsInternalFiles() throws Exception {
+    Path path = tempRepository.getPath();
+    Set<Path> expected = new HashSet<>();
+    expected.add(createFile(path.resolve("Entity").resolve("first.json")));
+    expected.add(createFile(path.resolve("Entity").resolve("sub").resolve("second.json")));
+    expected.add(createFile(path.resolve("root.json")));
+
+    createFile(path.resolve("Entity").resolve(".first.json" + Repository.FLUSH_SUFFIX));
+    createFile(path.resolve("Entity").resolve("deleted.json_del"));
+    createFile(path.resolve(GlobalIndex.INDEX_FOLDER).resolve("index.json"));
+    createFile(path.resolve(GlobalIndex.INDEX_FOLDER).resolve("index.json" + GlobalIndex.TEMP_SUFFIX));
+    createFile(path.resolve(".git").resolve("config"));
+
+    Repository repository = tempRepository.getRepository();
+    assertEquals(expected, repository.getAllFilesInRepository());
+
+    Set<Path> walked = ConcurrentHashMap.newKeySet();
+    repository.walkFilesInRepository((file, attributes) -> {
+      assertEquals(file.toFile().length(), attributes.size());
+      walked.add(file);
+    });
+    assertEquals(expected, walked);
+  }
+
+  private Path createFile(Path file) throws Exception {
+    Files.createDirectories(file.getParent());
+    Files.write(file, file.getFileName().toString().getBytes());
+    return file;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb;
+
+import de.ks.flatadocdb.defaults.DefaultIdGenerator;
+import de.ks.flatadocdb.index.GlobalIndex;
+import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.session.Session;
+import de.ks.flatadocdb.util.DeleteDir;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class RepositoryWatcherTest {
+  @Rule
+  public TempRepository tempRepository = new TempRepository();
+
+  @Test
+  public void testExternalChanges() throws Exception {
+    tempRepository.getMetaModel().addEntity(TestEntity.class);
+    Repository repository = tempRepository.getRepository();
+    Session session = new Session(tempRepository.getMetaModel(), repository);
+    session.persist(new TestEntity("test"));
+    session.prepare();
+    session.commit();
+
+    repository.startWatcher(50, TimeUnit.MILLISECONDS);
+    GlobalIndex index = repository.getIndex();
+    DefaultIdGenerator idGenerator = new DefaultIdGenerator();
+    Path folder = tempRepository.getPath().resolve(TestEntity.class.getSimpleName());
+    Path copy = folder.resolve("copy.json");
+    String copyId = idGenerator.getSha1Hash(tempRepository.getPath(), copy);
+
+    Files.copy(folder.resolve("test.json"), copy);
+    waitFor(() -> index.getById(copyId) != null);
+    assertEquals(2, index.getCount(TestEntity.class));
+
+    Path subFolder = folder.resolve("sub");
+    Files.createDirectories(subFolder);
+    Path nested = subFolder.resolve("nested.json");
+    Files.copy(copy, nested);
+    String nestedId = idGenerator.getSha1Hash(tempRepository.getPath(), nested);
+    waitFor(() -> index.getById(nestedId) != null);
+
+    Files.delete(copy);
+    waitFor(() -> index.getById(copyId) == null);
+    assertEquals(2, index.getCount(TestEntity.class));
+
+    Path outside = tempRepository.getPath().resolveSibling("testRepositoryMoved");
+    new DeleteDir(outside).delete();
+    try {
+      Files.move(subFolder, outside);
+      waitFor(() -> index.getById(nestedId) == null);
+      assertEquals(1, index.getCount(TestEntity.class));
+    } finally {
+      new DeleteDir(outside).delete();
+    }
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out waiting for index update", System.currentTimeMillis() < end);
+      Thread.sleep(20);
+    }
+  }
+}
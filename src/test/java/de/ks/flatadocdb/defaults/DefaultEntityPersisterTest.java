@@ -33,6 +33,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
@@ -97,6 +98,17 @@ public class DefaultEntityPersisterTest {
     assertTrue(persister.canParse(write, testEntityDescriptor));
   }
 
+  @Test
+  public void testReadTypeName() throws Exception {
+    DefaultEntityPersister persister = new DefaultEntityPersister();
+    persister.initialize(metaModel);
+    byte[] contents = persister.createFileContents(tempRepository.getRepository(), testEntityDescriptor, new TestEntity("Hallo welt"));
+    assertEquals(TestEntity.class.getName(), persister.readTypeName(ByteBuffer.wrap(contents)));
+    assertEquals(TestEntity.class.getName(), persister.readTypeName(ByteBuffer.wrap(("{\"" + TestEntity.class.getName() + "\":{}}").getBytes())));
+    assertNull(persister.readTypeName(ByteBuffer.wrap("[1, 2]".getBytes())));
+    assertNull(persister.readTypeName(ByteBuffer.wrap("{\"de.ks.Trunc".getBytes())));
+  }
+
   private static final Logger log = LoggerFactory.getLogger(DefaultEntityPersisterTest.class);
 
   @Test
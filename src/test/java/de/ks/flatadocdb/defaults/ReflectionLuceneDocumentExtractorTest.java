@@ -20,16 +20,20 @@ import de.ks.flatadocdb.index.StandardLuceneFields;
 import de.ks.flatadocdb.metamodel.TestEntity;
 import de.ks.flatadocdb.session.RelationOwner;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.hamcrest.Matchers;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -112,12 +116,64 @@ public class ReflectionLuceneDocumentExtractorTest {
   public void testCreateDocument() throws Exception {
     TestEntity testEntity = new TestEntity("huhu").setAttribute("bla");
     Document document = new ReflectionLuceneDocumentExtractor().createDocument(testEntity);
-    assertThat(document.getFields(), Matchers.hasSize(4));
+    assertThat(document.getFields().stream().filter(f -> f.fieldType().indexOptions() != IndexOptions.NONE).collect(Collectors.toList()), Matchers.hasSize(4));
+    assertThat(document.getFields(), Matchers.hasSize(8));//+doc values
     assertNull(document.getField("id"));//class field
     assertEquals("huhu", document.getField("name").stringValue());
     assertEquals("bla", document.getField("attribute").stringValue());
   }
 
+  @Test
+  public void testDocValues() throws Exception {
+    ClassWithValues classWithValues = new ClassWithValues();
+    classWithValues.booleans = new boolean[]{true, false, true};
+    classWithValues.luceneField = Arrays.asList(StandardLuceneFields.ID, StandardLuceneFields.FILENAME);
+    classWithValues.count = 42;
+    classWithValues.field = StandardLuceneFields.NATURAL_ID;
+    classWithValues.day = LocalDate.of(2015, 10, 1);
+    Document document = new ReflectionLuceneDocumentExtractor().createDocument(classWithValues);
+
+    assertEquals(DocValuesType.NUMERIC, docValues(document, "count").get(0).fieldType().docValuesType());
+    assertEquals(42L, docValues(document, "count").get(0).numericValue());
+    assertEquals(LocalDate.of(2015, 10, 1).toEpochDay(), document.getField("day").numericValue());
+    assertEquals(DocValuesType.SORTED, docValues(document, "field").get(0).fieldType().docValuesType());
+    assertEquals("NATURAL_ID", docValues(document, "field").get(0).binaryValue().utf8ToString());
+    assertEquals(2, docValues(document, "booleans").size());
+    assertEquals(2, docValues(document, "luceneField").size());
+    assertEquals(DocValuesType.SORTED_SET, docValues(document, "luceneField").get(0).fieldType().docValuesType());
+  }
+
+  private static List<IndexableField> docValues(Document document, String name) {
+    return Arrays.stream(document.getFields(name)).filter(f -> f.fieldType().docValuesType() != DocValuesType.NONE).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testReusableDocument() throws Exception {
+    ReflectionLuceneDocumentExtractor extractor = new ReflectionLuceneDocumentExtractor();
+    Document first = extractor.createReusableDocument(new TestEntity("huhu").setAttribute("bla"));
+    IndexableField firstAttribute = first.getField("attribute");
+    assertEquals("bla", firstAttribute.stringValue());
+
+    Document second = extractor.createReusableDocument(new TestEntity("hoho").setAttribute("blubb"));
+    assertSame(firstAttribute, second.getField("attribute"));
+    assertEquals("blubb", second.getField("attribute").stringValue());
+    assertEquals("hoho", second.getField("name").stringValue());
+
+    Document fresh = extractor.createDocument(new TestEntity("haha").setAttribute("blo"));
+    assertNotSame(firstAttribute, fresh.getField("attribute"));
+    assertEquals("blubb", second.getField("attribute").stringValue());
+  }
+
+  @Test
+  public void testCompiledAccessor() throws Exception {
+    TestEntity testEntity = new TestEntity("huhu").setAttribute("bla");
+    assertEquals("bla", ReflectionLuceneDocumentExtractor.compileAccessor(TestEntity.class.getDeclaredField("attribute")).apply(testEntity));
+
+    ClassWithValues classWithValues = new ClassWithValues();
+    classWithValues.count = 42;
+    assertEquals(42, ReflectionLuceneDocumentExtractor.compileAccessor(ClassWithValues.class.getDeclaredField("count")).apply(classWithValues));
+  }
+
   @Test
   public void testDocFieldEntity() throws Exception {
     TestEntity testEntity = new TestEntity("huhu").setAttribute("bla");
@@ -143,4 +199,12 @@ public class ReflectionLuceneDocumentExtractorTest {
     List<LocalDateTime> times;
     List<StandardLuceneFields> luceneField;
   }
+
+  public static class ClassWithValues {
+    boolean[] booleans;
+    List<StandardLuceneFields> luceneField;
+    int count;
+    StandardLuceneFields field;
+    LocalDate day;
+  }
 }
\ No newline at end of file
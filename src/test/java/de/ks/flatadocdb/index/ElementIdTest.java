@@ -0,0 +1,54 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import de.ks.flatadocdb.defaults.DefaultIdGenerator;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class ElementIdTest {
+  @Test
+  public void testRoundTrip() throws Exception {
+    Path root = Paths.get("repo");
+    String hex = new DefaultIdGenerator().getSha1Hash(root, root.resolve("folder").resolve("file.json"));
+
+    ElementId id = ElementId.of(hex);
+    assertEquals(hex, id.toString());
+    assertEquals(id, ElementId.of(id.toBytes()));
+    assertEquals(id.hashCode(), ElementId.of(id.toBytes()).hashCode());
+
+    assertNull(ElementId.parse("blub"));
+    assertNull(ElementId.parse(hex.replace(hex.charAt(3), 'x')));
+  }
+
+  @Test
+  public void testFolderIsShared() throws Exception {
+    Path folder = Paths.get("repo", "folder");
+    IndexElement first = new IndexElement(null, Paths.get("repo", "folder", "first.json"), "00000000000000000000000000000000000000aa", null, Object.class);
+    IndexElement second = new IndexElement(null, Paths.get("repo", "folder", "second.json"), "00000000000000000000000000000000000000bb", null, Object.class);
+
+    assertSame(first.getFolder(), second.getFolder());
+    assertEquals(folder, first.getFolder());
+    assertEquals("second.json", second.getFileName());
+    assertEquals(Paths.get("repo", "folder", "second.json"), second.getPathInRepository());
+  }
+}
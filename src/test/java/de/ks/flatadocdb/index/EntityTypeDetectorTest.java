@@ -0,0 +1,66 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ks.flatadocdb.index;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.TempRepository;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.session.Related;
+import de.ks.flatadocdb.session.RelationOwner;
+import de.ks.flatadocdb.session.Session;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class EntityTypeDetectorTest {
+  @Rule
+  public TempRepository tempRepository = new TempRepository();
+  private MetaModel metaModel;
+  private Repository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = tempRepository.getRepository();
+    metaModel = tempRepository.getMetaModel();
+    metaModel.addEntity(RelationOwner.class);
+    metaModel.addEntity(Related.class);
+    metaModel.addEntity(TestEntity.class);
+  }
+
+  @Test
+  public void testDetect() throws Exception {
+    Session session = new Session(metaModel, repository);
+    session.persist(new TestEntity("test"));
+    session.prepare();
+    session.commit();
+
+    Path file = tempRepository.getPath().resolve(TestEntity.class.getSimpleName()).resolve("test.json");
+    Path other = tempRepository.getPath().resolve("other.json");
+    Files.write(other, "{\"java.lang.String\" : \"bla\"}".getBytes());
+
+    EntityTypeDetector detector = new EntityTypeDetector(repository, metaModel.getEntities());
+    assertSame(metaModel.getEntityDescriptor(TestEntity.class), detector.detect(file));
+    assertNull(detector.detect(other));
+    assertNull(detector.detect(tempRepository.getPath().resolve("missing.json")));
+  }
+}
@@ -18,19 +18,32 @@ package de.ks.flatadocdb.index;
 
 import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.TempRepository;
+import de.ks.flatadocdb.annotation.Entity;
+import de.ks.flatadocdb.annotation.QueryProvider;
+import de.ks.flatadocdb.entity.NamedEntity;
 import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.query.Query;
+import de.ks.flatadocdb.session.NaturalId;
+import de.ks.flatadocdb.session.Related;
 import de.ks.flatadocdb.session.Session;
 import org.apache.lucene.index.IndexReader;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class GlobalIndexTest {
   public static final int COUNT = 5;
@@ -69,6 +82,30 @@ public class GlobalIndexTest {
     assertEquals(COUNT, index.getQueryElements(TestEntity.attributeQuery()).size());
   }
 
+  @Test
+  public void testClassPartitions() throws Exception {
+    metaModel.addEntity(Related.class);
+    Session session = new Session(metaModel, repository);
+    session.persist(new Related("related"));
+    session.prepare();
+    session.commit();
+
+    assertEquals(COUNT, index.getCount(TestEntity.class));
+    assertEquals(1, index.getCount(Related.class));
+    assertEquals(0, index.getCount(NamedEntity.class));
+    assertEquals(COUNT + 1, index.getCountOfType(NamedEntity.class));
+    assertEquals(COUNT + 1, index.getAllOfType(NamedEntity.class).size());
+    assertEquals(0, index.getAllOf(NamedEntity.class).size());
+    assertEquals(COUNT, index.getAllOf(TestEntity.class).size());
+
+    session = new Session(metaModel, repository);
+    session.remove(session.findByNaturalId(TestEntity.class, "test1"));
+    session.prepare();
+    session.commit();
+    assertEquals(COUNT - 1, index.getCount(TestEntity.class));
+    assertEquals(COUNT, index.getCountOfType(NamedEntity.class));
+  }
+
   @Test
   public void testRecreateLuceneIndex() throws Exception {
     IndexReader indexReader = luceneIndex.getIndexReader();
@@ -80,6 +117,22 @@ public class GlobalIndexTest {
     assertEquals(COUNT, indexReader.maxDoc());
   }
 
+  @Test
+  public void testSharedRebuild() throws Exception {
+    GlobalIndex rebuilt = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    try {
+      int added = new IndexRebuild(repository, metaModel, Executors.newFixedThreadPool(2), rebuilt, luceneIndex).rebuild();
+      assertEquals(COUNT, added);
+
+      assertEquals(COUNT, rebuilt.getAllOf(TestEntity.class).size());
+      assertEquals(COUNT, rebuilt.getQueryElements(TestEntity.attributeQuery()).size());
+      assertNotNull(rebuilt.getByNaturalId(new NaturalId(TestEntity.class, "test1")).getMd5Sum());
+      assertEquals(COUNT, luceneIndex.getIndexReader().maxDoc());
+    } finally {
+      rebuilt.close();
+    }
+  }
+
   @Test
   public void testPersistLoadIndex() throws Exception {
     index.recreate();
@@ -100,4 +153,331 @@ public class GlobalIndexTest {
       repository.close();
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testValidateChangedFiles() throws Exception {
+    index.flush();
+    repository.close();
+
+    Path folder = path.resolve(TestEntity.class.getSimpleName());
+    Path changed = folder.resolve("test2.json");
+    String content = new String(Files.readAllBytes(changed), StandardCharsets.UTF_8);
+    Files.write(changed, content.replace("\"attribute\" : null", "\"attribute\" : \"changed\"").getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(changed, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+
+    Files.delete(folder.resolve("test3.json"));
+
+    content = new String(Files.readAllBytes(folder.resolve("test4.json")), StandardCharsets.UTF_8);
+    Files.write(folder.resolve("test6.json"), content.replace("test4", "test6").getBytes(StandardCharsets.UTF_8));
+
+    repository = new Repository(path);
+    try {
+      repository.initialize(metaModel, Executors.newSingleThreadExecutor());
+      index = repository.getIndex();
+
+      Collection<IndexElement> elements = index.getAllOf(TestEntity.class);
+      assertEquals(COUNT, elements.size());
+      assertNull(index.getByNaturalId(new NaturalId(TestEntity.class, "test3")));
+      assertNotNull(index.getByNaturalId(new NaturalId(TestEntity.class, "test6")));
+
+      IndexElement element = index.getByNaturalId(new NaturalId(TestEntity.class, "test2"));
+      assertEquals(Optional.of("changed"), index.getQueryElements(TestEntity.attributeQuery()).get(element));
+    } finally {
+      repository.close();
+    }
+  }
+
+  @Test
+  public void testReplayChangeLog() throws Exception {
+    index.flush();
+    modifyViaSession();
+
+    GlobalIndex reloaded = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    try {
+      assertTrue(reloaded.load());
+      assertEquals(COUNT, reloaded.getAllOf(TestEntity.class).size());
+      assertNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test3")));
+      assertNotNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test6")));
+
+      IndexElement element = reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test2"));
+      assertEquals(Optional.of("changed"), reloaded.getQueryElements(TestEntity.attributeQuery()).get(element));
+    } finally {
+      reloaded.close();
+    }
+  }
+
+  @Test
+  public void testCheckpointOnClose() throws Exception {
+    modifyViaSession();
+    repository.close();
+
+    Path indexFolder = path.resolve(GlobalIndex.INDEX_FOLDER);
+    assertTrue(Files.exists(indexFolder.resolve(GlobalIndex.INDEX_FILE)));
+    assertFalse(Files.exists(indexFolder.resolve(IndexChangeLog.LOG_FILE)));
+    assertFalse(Files.exists(indexFolder.resolve(IndexChangeLog.ROTATED_LOG_FILE)));
+
+    GlobalIndex reloaded = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    try {
+      assertTrue(reloaded.load());
+      assertFalse(reloaded.hasPendingChanges());
+      assertEquals(COUNT, reloaded.getAllOf(TestEntity.class).size());
+      assertNotNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test6")));
+    } finally {
+      reloaded.close();
+    }
+  }
+
+  @Test
+  public void testFailedCheckpointKeepsPendingChanges() throws Exception {
+    index.flush();
+    modifyViaSession();
+
+    AtomicBoolean broken = new AtomicBoolean(true);
+    GlobalIndex failing = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor()) {
+      @Override
+      protected void writeSequence(Path target) throws IOException {
+        if (broken.get()) {
+          throw new IOException("disk full");
+        }
+        super.writeSequence(target);
+      }
+    };
+    try {
+      assertTrue(failing.load());
+      assertTrue(failing.hasPendingChanges());
+      try {
+        failing.flush();
+        fail("Checkpoint did not fail");
+      } catch (RuntimeException e) {
+        assertTrue(failing.hasPendingChanges());
+      }
+      broken.set(false);
+      failing.flush();
+      assertFalse(failing.hasPendingChanges());
+    } finally {
+      failing.close();
+    }
+  }
+
+  @Test
+  public void testBinarySnapshot() throws Exception {
+    index.setSnapshotFormat(SnapshotFormat.BINARY);
+    index.flush();
+
+    Path indexFolder = path.resolve(GlobalIndex.INDEX_FOLDER);
+    assertTrue(Files.exists(indexFolder.resolve(GlobalIndex.BINARY_FILE)));
+    assertFalse(Files.exists(indexFolder.resolve(GlobalIndex.INDEX_FILE)));
+
+    IndexElement original = index.getByNaturalId(new NaturalId(TestEntity.class, "test1"));
+    modifyViaSession();
+
+    GlobalIndex reloaded = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    try {
+      assertTrue(reloaded.load());
+      assertEquals(COUNT, reloaded.getAllOf(TestEntity.class).size());
+      assertNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test3")));
+      assertNotNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test6")));
+
+      IndexElement element = reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test1"));
+      assertEquals(original.getId(), element.getId());
+      assertEquals(original.getPathInRepository(), element.getPathInRepository());
+      assertArrayEquals(original.getMd5Sum(), element.getMd5Sum());
+      assertTrue(element.isUpToDate(original.getLastModified(), original.getSize()));
+
+      Map<IndexElement, Optional<String>> attributes = reloaded.getQueryElements(TestEntity.attributeQuery());
+      assertEquals(COUNT, attributes.size());
+      assertEquals(Optional.empty(), attributes.get(element));
+      assertEquals(Optional.of("changed"), attributes.get(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test2"))));
+    } finally {
+      reloaded.close();
+    }
+  }
+
+  @Test
+  public void testBinarySnapshotEnumValues() throws Exception {
+    metaModel.addEntity(StateEntity.class);
+    Session session = new Session(metaModel, repository);
+    session.persist(new StateEntity("open", State.OPEN));
+    session.persist(new StateEntity("closed", State.CLOSED));
+    session.persist(new StateEntity("none", null));
+    session.prepare();
+    session.commit();
+
+    index.setSnapshotFormat(SnapshotFormat.BINARY);
+    index.flush();
+
+    BinaryIndexSnapshot.Reader reader = BinaryIndexSnapshot.open(path.resolve(GlobalIndex.INDEX_FOLDER).resolve(GlobalIndex.BINARY_FILE), index.getMapper());
+    assertTrue(reader.getClasses().contains(State.class));
+
+    GlobalIndex reloaded = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    try {
+      assertTrue(reloaded.load());
+      Map<IndexElement, Optional<State>> states = reloaded.getQueryElements(StateEntity.stateQuery());
+      assertEquals(3, states.size());
+      assertEquals(Optional.of(State.OPEN), states.get(reloaded.getByNaturalId(new NaturalId(StateEntity.class, "open"))));
+      assertEquals(Optional.of(State.CLOSED), states.get(reloaded.getByNaturalId(new NaturalId(StateEntity.class, "closed"))));
+      assertEquals(Optional.empty(), states.get(reloaded.getByNaturalId(new NaturalId(StateEntity.class, "none"))));
+    } finally {
+      reloaded.close();
+    }
+  }
+
+  @Test
+  public void testBinarySnapshotNonSerializableValues() throws Exception {
+    metaModel.addEntity(StateEntity.class);
+    Session session = new Session(metaModel, repository);
+    session.persist(new StateEntity("sized", State.OPEN).setSize(new Size(3, 4)));
+    session.persist(new StateEntity("unsized", State.OPEN));
+    session.prepare();
+    session.commit();
+
+    index.setSnapshotFormat(SnapshotFormat.BINARY);
+    index.flush();
+    assertFalse(index.hasPendingChanges());
+
+    GlobalIndex reloaded = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    try {
+      assertTrue(reloaded.load());
+      Map<IndexElement, Optional<Size>> sizes = reloaded.getQueryElements(StateEntity.sizeQuery());
+      assertEquals(Optional.of(new Size(3, 4)), sizes.get(reloaded.getByNaturalId(new NaturalId(StateEntity.class, "sized"))));
+      assertEquals(Optional.empty(), sizes.get(reloaded.getByNaturalId(new NaturalId(StateEntity.class, "unsized"))));
+    } finally {
+      reloaded.close();
+    }
+  }
+
+  @Test
+  public void testIdFilter() throws Exception {
+    Path filterFile = path.resolve(GlobalIndex.INDEX_FOLDER).resolve(GlobalIndex.ID_FILTER_FILE);
+    index.flush();
+    assertFalse(Files.exists(filterFile));
+
+    GlobalIndex filtered = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    filtered.setIdFilterEnabled(true);
+    try {
+      assertTrue(filtered.load());
+      assertNotNull(filtered.getByNaturalId(new NaturalId(TestEntity.class, "TEST1")));
+      assertNull(filtered.getByNaturalId(new NaturalId(TestEntity.class, "unknown")));
+      assertNull(filtered.getById("0000000000000000000000000000000000000000"));
+      filtered.flush();
+    } finally {
+      filtered.close();
+    }
+    assertTrue(Files.exists(filterFile));
+
+    modifyViaSession();
+
+    GlobalIndex reloaded = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    reloaded.setIdFilterEnabled(true);
+    try {
+      assertTrue(reloaded.load());
+      IndexElement added = reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test6"));
+      assertNotNull(added);
+      assertSame(added, reloaded.getById(added.getId()));
+      assertNotNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test1")));
+      assertNull(reloaded.getByNaturalId(new NaturalId(TestEntity.class, "test3")));
+    } finally {
+      reloaded.close();
+    }
+  }
+
+  @Test
+  public void testIdFilterAnswersWithoutMap() throws Exception {
+    index.flush();
+    GlobalIndex filtered = new GlobalIndex(repository, metaModel, Executors.newSingleThreadExecutor());
+    filtered.setIdFilterEnabled(true);
+    try {
+      assertTrue(filtered.load());
+      IndexElement existing = filtered.getByNaturalId(new NaturalId(TestEntity.class, "test1"));
+      assertSame(existing, filtered.getById(existing.getId()));
+
+      String unknownId = "0000000000000000000000000000000000000000";
+      filtered.idToElement.put(ElementId.parse(unknownId), existing);//only in the map, not in the filter
+      assertNull(filtered.getById(unknownId));
+
+      filtered.rebuildIdFilter();
+      assertSame(existing, filtered.getById(existing.getId()));
+      assertNull(filtered.rebuildingIdFilter);
+    } finally {
+      filtered.close();
+    }
+  }
+
+  private void modifyViaSession() {
+    Session session = new Session(metaModel, repository);
+    session.findByNaturalId(TestEntity.class, "test2").setAttribute("changed");
+    session.remove(session.findByNaturalId(TestEntity.class, "test3"));
+    session.persist(new TestEntity("test6"));
+    session.prepare();
+    session.commit();
+  }
+
+  public enum State {
+    OPEN, CLOSED
+  }
+
+  @Entity
+  public static class StateEntity extends NamedEntity {
+    @QueryProvider
+    public static Query<StateEntity, State> stateQuery() {
+      return Query.of(StateEntity.class, StateEntity::getState);
+    }
+
+    @QueryProvider
+    public static Query<StateEntity, Size> sizeQuery() {
+      return Query.of(StateEntity.class, StateEntity::getSize);
+    }
+
+    State state;
+    Size size;
+
+    protected StateEntity() {
+      super(null);
+    }
+
+    public StateEntity(String name, State state) {
+      super(name);
+      this.state = state;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    public Size getSize() {
+      return size;
+    }
+
+    public StateEntity setSize(Size size) {
+      this.size = size;
+      return this;
+    }
+  }
+
+  /**
+   * Not serializable.
+   */
+  public static class Size {
+    int width;
+    int height;
+
+    protected Size() {
+      //json
+    }
+
+    public Size(int width, int height) {
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Size && ((Size) o).width == width && ((Size) o).height == height;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * width + height;
+    }
+  }
+}
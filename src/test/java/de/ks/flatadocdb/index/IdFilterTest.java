@@ -0,0 +1,79 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import de.ks.flatadocdb.session.NaturalId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class IdFilterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWriteRead() throws Exception {
+    IdFilter filter = new IdFilter(10);
+    IndexElement element = element("00000000000000000000000000000000000000aa", new NaturalId(Object.class, "Name"));
+    filter.put(element);
+    filter.removed();
+
+    Path file = folder.getRoot().toPath().resolve("ids.filter");
+    filter.write(file);
+    IdFilter read = IdFilter.read(file);
+
+    assertNotNull(read);
+    assertTrue(read.mightContain(element.getElementId()));
+    assertTrue(read.mightContain(new NaturalId(Object.class, "name")));
+    assertFalse(read.mightContain(ElementId.of("00000000000000000000000000000000000000bb")));
+    assertFalse(read.needsRebuild());
+  }
+
+  @Test
+  public void testReadUnknownFormat() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("ids.filter");
+    Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+    assertNull(IdFilter.read(file));
+  }
+
+  @Test
+  public void testUnstableKeyIsNotFiltered() throws Exception {
+    IdFilter filter = new IdFilter(10);
+    NaturalId naturalId = new NaturalId(Object.class, new IdentityKey());
+    filter.put(element("00000000000000000000000000000000000000aa", naturalId));
+
+    assertFalse(IdFilter.hasStableKey(naturalId));
+    assertTrue(filter.mightContain(new NaturalId(Object.class, new IdentityKey())));
+    assertTrue(IdFilter.hasStableKey(new NaturalId(Object.class, 42L)));
+  }
+
+  private static IndexElement element(String id, NaturalId naturalId) {
+    return new IndexElement(null, Paths.get("repo", id + ".json"), id, naturalId, Object.class);
+  }
+
+  static class IdentityKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.index;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class QueryValueIndexTest {
+  @Test
+  public void testLookupsAreUnmodifiable() throws Exception {
+    IndexElement first = element("00000000000000000000000000000000000000aa");
+    IndexElement second = element("00000000000000000000000000000000000000bb");
+    QueryValueIndex index = new QueryValueIndex();
+    index.put(first, "a");
+    index.put(second, "b");
+
+    Collection<IndexElement> equal = index.equal("a");
+    assertEquals(1, equal.size());
+    assertUnsupported(equal::clear);
+
+    NavigableMap<Object, Set<IndexElement>> ordered = index.ordered(true);
+    assertEquals(Arrays.asList("a", "b"), Arrays.asList(ordered.keySet().toArray()));
+    assertUnsupported(ordered::clear);
+    assertUnsupported(() -> ordered.remove("a"));
+    assertUnsupported(() -> ordered.firstEntry().getValue().clear());
+    assertUnsupported(() -> index.ordered(false).get("b").remove(second));
+
+    assertEquals(1, index.equal("a").size());
+    assertEquals(2, index.range(null, false, null, false).size());
+  }
+
+  private static void assertUnsupported(Runnable modification) {
+    try {
+      modification.run();
+      fail("Index was modified");
+    } catch (UnsupportedOperationException e) {
+      //expected
+    }
+  }
+
+  private static IndexElement element(String id) {
+    return new IndexElement(null, Paths.get("repo", id + ".json"), id, null, Object.class);
+  }
+}
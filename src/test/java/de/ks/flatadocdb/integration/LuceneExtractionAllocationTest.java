@@ -0,0 +1,119 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.integration;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.TempRepository;
+import de.ks.flatadocdb.defaults.ReflectionLuceneDocumentExtractor;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.session.Session;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the allocated bytes per document of the lucene document extraction and of a complete reindex.
+ */
+public class LuceneExtractionAllocationTest {
+  private static final Logger log = LoggerFactory.getLogger(LuceneExtractionAllocationTest.class);
+  private static final int AMOUNT = 2000;
+  private static final int ROUNDS = 10;
+
+  private MetaModel metamodel;
+  private Repository repository;
+  private com.sun.management.ThreadMXBean threadBean;
+
+  @Rule
+  public TempRepository tempRepository = new TempRepository();
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    repository = tempRepository.getRepository();
+    metamodel = tempRepository.getMetaModel();
+    metamodel.addEntity(TestEntity.class);
+  }
+
+  @Test
+  public void testExtractionAllocation() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < AMOUNT; i++) {
+      entities.add(new TestEntity("Schnitzel" + i).setAttribute("Attribute" + i));
+    }
+    ReflectionLuceneDocumentExtractor extractor = new ReflectionLuceneDocumentExtractor();
+    //warmup
+    extract(extractor, entities, false);
+    extract(extractor, entities, true);
+
+    long fresh = extract(extractor, entities, false);
+    long reused = extract(extractor, entities, true);
+    log.info("Extraction allocated {} bytes/document with new fields and {} bytes/document with reused fields", fresh, reused);
+    assertTrue("reused=" + reused + " fresh=" + fresh, reused < fresh);
+  }
+
+  @Test
+  public void testReindexAllocation() throws Exception {
+    Session session = new Session(metamodel, repository);
+    for (int i = 0; i < AMOUNT; i++) {
+      session.persist(new TestEntity("Schnitzel" + i).setAttribute("Attribute" + i));
+    }
+    session.prepare();
+    session.commit();
+
+    repository.getLuceneIndex().recreate();
+    long before = allocatedBytes();
+    repository.getLuceneIndex().recreate();
+    long allocated = allocatedBytes() - before;
+    log.info("Reindex allocated {} bytes/document", allocated / AMOUNT);
+  }
+
+  private long extract(ReflectionLuceneDocumentExtractor extractor, List<TestEntity> entities, boolean reuse) {
+    long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int round = 0; round < ROUNDS; round++) {
+      for (TestEntity entity : entities) {
+        if (reuse) {
+          extractor.createReusableDocument(entity);
+        } else {
+          extractor.createDocument(entity);
+        }
+      }
+    }
+    return (threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / (ROUNDS * entities.size());
+  }
+
+  private long allocatedBytes() {
+    long sum = 0;
+    for (long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+      sum += Math.max(0, allocated);
+    }
+    return sum;
+  }
+}
@@ -16,12 +16,13 @@
 
 package de.ks.flatadocdb.metamodel;
 
+import de.ks.flatadocdb.annotation.Entity;
+import de.ks.flatadocdb.entity.NamedEntity;
 import de.ks.flatadocdb.session.Related;
 import de.ks.flatadocdb.session.RelationOwner;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
 
 public class MetamodelTest {
   @Test
@@ -53,4 +54,36 @@ public class MetamodelTest {
     assertNotNull(metaModel.getEntityDescriptor(Related.class));
     assertNotNull(metaModel.getEntityDescriptor(TestEntity.class));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testConflictingDocValues() throws Exception {
+    MetaModel metaModel = new MetaModel();
+    metaModel.addEntity(TestEntity.class);
+    metaModel.addEntity(NumberAttribute.class);
+    try {
+      metaModel.addEntity(TextAttribute.class);
+      fail("Registered conflicting doc values");
+    } catch (ParseException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("'value'"));
+    }
+    assertFalse(metaModel.isRegistered(TextAttribute.class));
+  }
+
+  @Entity
+  public static class NumberAttribute extends NamedEntity {
+    long value;
+
+    protected NumberAttribute() {
+      super(null);
+    }
+  }
+
+  @Entity
+  public static class TextAttribute extends NamedEntity {
+    String value;
+
+    protected TextAttribute() {
+      super(null);
+    }
+  }
+}
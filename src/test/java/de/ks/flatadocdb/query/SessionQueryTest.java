@@ -18,22 +18,33 @@ package de.ks.flatadocdb.query;
 import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.TempRepository;
 import de.ks.flatadocdb.entity.BaseEntity;
+import de.ks.flatadocdb.entity.NamedEntity;
 import de.ks.flatadocdb.index.GlobalIndex;
 import de.ks.flatadocdb.index.IndexElement;
+import de.ks.flatadocdb.index.LuceneQueryFields;
+import de.ks.flatadocdb.index.StandardLuceneFields;
 import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.session.Related;
 import de.ks.flatadocdb.session.Session;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
 import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.*;
 
@@ -132,4 +143,159 @@ public class SessionQueryTest {
       assertThat(entity.getAttribute(), Matchers.containsString("1"));
     }
   }
+
+  @Test
+  public void testQueryEquals() throws Exception {
+    Session session = new Session(metamodel, repository);
+    Set<TestEntity> entities = session.queryEquals(TestEntity.class, TestEntity.attributeQuery(), "Att3");
+    assertEquals(1, entities.size());
+    assertEquals("Schnitzel2", entities.iterator().next().getName());
+    assertEquals(0, session.queryEquals(TestEntity.class, TestEntity.attributeQuery(), "bla").size());
+
+    session.findByNaturalId(TestEntity.class, "Schnitzel2").setAttribute("bla");
+    session.findByNaturalId(TestEntity.class, "Schnitzel5").setAttribute("bla");
+    assertEquals(0, session.queryEquals(TestEntity.class, TestEntity.attributeQuery(), "Att3").size());
+    assertEquals(2, session.queryEquals(TestEntity.class, TestEntity.attributeQuery(), "bla").size());
+  }
+
+  @Test
+  public void testQueryIn() throws Exception {
+    Session session = new Session(metamodel, repository);
+    assertEquals(3, session.queryIn(TestEntity.class, TestEntity.attributeQuery(), Arrays.asList("Att1", "Att3", "Att5", "bla")).size());
+
+    session.findByNaturalId(TestEntity.class, "Schnitzel0").setAttribute("Att7");
+    assertEquals(2, session.queryIn(TestEntity.class, TestEntity.attributeQuery(), Arrays.asList("Att1", "Att3", "Att5")).size());
+    assertEquals(2, session.queryIn(TestEntity.class, TestEntity.attributeQuery(), Collections.singleton("Att7")).size());
+  }
+
+  @Test
+  public void testQueryRange() throws Exception {
+    Session session = new Session(metamodel, repository);
+    Set<TestEntity> entities = session.queryRange(TestEntity.class, TestEntity.attributeQuery(), "Att2", true, "Att4", true);
+    assertEquals(3, entities.size());
+    assertEquals(2, session.queryRange(TestEntity.class, TestEntity.attributeQuery(), "Att2", false, "Att4", true).size());
+    assertEquals(2, session.queryRange(TestEntity.class, TestEntity.attributeQuery(), null, true, "Att10", true).size());
+    assertEquals(0, session.queryRange(TestEntity.class, TestEntity.attributeQuery(), "Att4", true, "Att2", true).size());
+
+    session.findByNaturalId(TestEntity.class, "Schnitzel2").setAttribute("Zzz");
+    entities = session.queryRange(TestEntity.class, TestEntity.attributeQuery(), "Att2", true, "Att4", true);
+    assertEquals(2, entities.size());
+    entities = session.queryRange(TestEntity.class, TestEntity.attributeQuery(), "Z", true, null, true);
+    assertEquals("Schnitzel2", entities.iterator().next().getName());
+  }
+
+  @Test
+  public void testQueryPrefix() throws Exception {
+    Session session = new Session(metamodel, repository);
+    assertEquals(3, session.queryPrefix(TestEntity.class, TestEntity.attributeQuery(), "Att1").size());
+
+    session.findByNaturalId(TestEntity.class, "Schnitzel10").setAttribute("blubb");
+    assertEquals(2, session.queryPrefix(TestEntity.class, TestEntity.attributeQuery(), "Att1").size());
+    session.findByNaturalId(TestEntity.class, "Schnitzel5").setAttribute("Att1x");
+    assertEquals(3, session.queryPrefix(TestEntity.class, TestEntity.attributeQuery(), "Att1").size());
+  }
+
+  @Test
+  public void testQueryMinMax() throws Exception {
+    Session session = new Session(metamodel, repository);
+    assertEquals(Optional.of("Att1"), session.queryMin(TestEntity.class, TestEntity.attributeQuery()));
+    assertEquals(Optional.of("Att9"), session.queryMax(TestEntity.class, TestEntity.attributeQuery()));
+
+    session.findByNaturalId(TestEntity.class, "Schnitzel0").setAttribute("Aaa");
+    session.findByNaturalId(TestEntity.class, "Schnitzel8").setAttribute(null);
+    assertEquals(Optional.of("Aaa"), session.queryMin(TestEntity.class, TestEntity.attributeQuery()));
+    assertEquals(Optional.of("Att8"), session.queryMax(TestEntity.class, TestEntity.attributeQuery()));
+  }
+
+  @Test
+  public void testQueryOrdered() throws Exception {
+    Session session = new Session(metamodel, repository);
+    List<String> expected = IntStream.rangeClosed(1, AMOUNT).mapToObj(i -> "Att" + i).sorted().collect(Collectors.toList());
+
+    List<TestEntity> ordered = session.queryOrdered(TestEntity.class, TestEntity.attributeQuery(), true);
+    assertEquals(expected, ordered.stream().map(TestEntity::getAttribute).collect(Collectors.toList()));
+
+    session.findByNaturalId(TestEntity.class, "Schnitzel0").setAttribute("Zzz");
+    ordered = session.queryOrdered(TestEntity.class, TestEntity.attributeQuery(), false);
+    assertEquals(AMOUNT, ordered.size());
+    assertEquals("Zzz", ordered.get(0).getAttribute());
+    assertEquals("Att10", ordered.get(AMOUNT - 1).getAttribute());
+  }
+
+  @Test
+  public void testLuceneQuery() throws Exception {
+    Session session = new Session(metamodel, repository);
+    Set<TestEntity> found = session.luceneQuery(TestEntity.class).range(TestEntity.attributeQuery(), "Att1", true, "Att3", false).find();
+    assertEquals(Arrays.asList("Att1", "Att10", "Att11", "Att2"), found.stream().map(TestEntity::getAttribute).sorted().collect(Collectors.toList()));
+
+    found = session.luceneQuery(TestEntity.class)//
+      .in(TestEntity.attributeQuery(), Arrays.asList("Att2", "Att5", "Att7"))//
+      .range(BaseEntity.getCreationTimeQuery(), LocalDateTime.now().minusDays(1), true, null, false)//
+      .fullText(new TermQuery(new Term(StandardLuceneFields.NATURAL_ID.name(), "Schnitzel4")))//
+      .find();
+    assertEquals(1, found.size());
+    assertEquals("Att5", found.iterator().next().getAttribute());
+
+    assertEquals(1, session.luceneQuery(TestEntity.class).equal(TestEntity.attributeQuery(), "Att7").findIds().size());
+    assertEquals(0, session.luceneQuery(TestEntity.class).range(BaseEntity.getCreationTimeQuery(), null, false, LocalDateTime.now().minusDays(1), true).findIds().size());
+    assertEquals(AMOUNT, session.luceneQuery(TestEntity.class).findIds().size());
+  }
+
+  @Test
+  public void testLuceneQueryUnboundedRange() throws Exception {
+    Session session = new Session(metamodel, repository);
+    session.persist(new TestEntity("without attribute"));
+    session.prepare();
+    session.commit();
+
+    session = new Session(metamodel, repository);
+    assertEquals(AMOUNT + 1, session.luceneQuery(TestEntity.class).findIds().size());
+    assertEquals(AMOUNT, session.luceneQuery(TestEntity.class).range(TestEntity.attributeQuery(), null, false, null, false).findIds().size());
+    assertEquals(AMOUNT + 1, session.luceneQuery(TestEntity.class).range(BaseEntity.getCreationTimeQuery(), null, false, null, false).findIds().size());
+  }
+
+  @Test
+  public void testLuceneQueryOversizedValue() throws Exception {
+    StringBuilder builder = new StringBuilder();
+    while (builder.length() <= IndexWriter.MAX_TERM_LENGTH) {
+      builder.append("Oversized ");
+    }
+    Session session = new Session(metamodel, repository);
+    session.persist(new TestEntity("Huge").setAttribute(builder.toString()));
+    session.prepare();
+    session.commit();
+
+    session = new Session(metamodel, repository);
+    assertEquals(1, session.luceneQuery(TestEntity.class).fullText(new TermQuery(new Term(StandardLuceneFields.NATURAL_ID.name(), "Huge"))).findIds().size());
+    assertEquals(AMOUNT, session.luceneQuery(TestEntity.class).range(TestEntity.attributeQuery(), null, false, null, false).findIds().size());
+    assertTrue(repository.getLuceneIndex().getFailedIds().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLuceneQueryMixedBounds() throws Exception {
+    LuceneQueryFields.range(BaseEntity.getCreationTimeQuery(), 1L, true, 2.5D, true);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLuceneQueryBoundOfOtherType() throws Exception {
+    LuceneQueryFields.range(TestEntity.attributeQuery(), 1, true, null, false);
+  }
+
+  @Test
+  public void testIndexedQueryOfUnrelatedClass() throws Exception {
+    Session session = new Session(metamodel, repository);
+    try {
+      session.queryEquals(Related.class, TestEntity.attributeQuery(), "Att1");
+      fail("Queried unrelated class");
+    } catch (IllegalArgumentException e) {
+      //expected
+    }
+    try {
+      session.queryMin(Related.class, TestEntity.attributeQuery());
+      fail("Queried unrelated class");
+    } catch (IllegalArgumentException e) {
+      //expected
+    }
+    assertEquals(1, session.queryEquals(NamedEntity.class, TestEntity.attributeQuery(), "Att1").size());
+  }
 }
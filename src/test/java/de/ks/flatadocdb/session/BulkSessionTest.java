@@ -0,0 +1,135 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.TempRepository;
+import de.ks.flatadocdb.annotation.Entity;
+import de.ks.flatadocdb.annotation.lifecycle.PostPersist;
+import de.ks.flatadocdb.entity.NamedEntity;
+import de.ks.flatadocdb.exception.BulkInsertException;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.metamodel.TestEntity;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BulkSessionTest {
+  private MetaModel metamodel;
+  private Repository repository;
+
+  @Rule
+  public TempRepository tempRepository = new TempRepository();
+
+  @Before
+  public void setUp() throws Exception {
+    repository = tempRepository.getRepository();
+    metamodel = tempRepository.getMetaModel();
+    metamodel.addEntity(TestEntity.class);
+    metamodel.addEntity(RelationOwner.class);
+    metamodel.addEntity(Related.class);
+  }
+
+  @Test
+  public void testInsertInBatches() throws Exception {
+    try (BulkSession bulk = new BulkSession(metamodel, repository, 10)) {
+      for (int i = 0; i < 25; i++) {
+        bulk.insert(new TestEntity("entity" + i).setAttribute("value" + i));
+      }
+      assertEquals(20, bulk.getInsertedCount());
+      assertEquals(20, repository.getIndex().getCount(TestEntity.class));
+
+      bulk.insert(new TestEntity("entity3"));
+      bulk.flush();
+      assertEquals(25, bulk.getInsertedCount());
+      assertTrue(bulk.getEntitiesPerSecond() > 0);
+    }
+
+    assertEquals(25, repository.getIndex().getCount(TestEntity.class));
+    Session session = new Session(metamodel, repository);
+    assertEquals("value24", session.findByNaturalId(TestEntity.class, "entity24").getAttribute());
+    assertEquals(25, session.search(TestEntity.class, new MatchAllDocsQuery(), 0, 10, null).getTotalHits());
+  }
+
+  @Test
+  public void testInsertRelated() throws Exception {
+    RelationOwner owner = new RelationOwner("owner");
+    owner.getRelatedList().add(new Related("related"));
+    owner.getRelatedChildren().add(new Related("child"));
+
+    try (BulkSession bulk = new BulkSession(metamodel, repository, 10)) {
+      bulk.insert(owner);
+    }
+
+    Session session = new Session(metamodel, repository);
+    RelationOwner read = session.findById(RelationOwner.class, owner.getId());
+    assertEquals(1, read.getRelatedList().size());
+    assertEquals("related", read.getRelatedList().get(0).getName());
+    assertEquals(1, read.getRelatedChildren().size());
+    assertEquals("child", read.getRelatedChildren().get(0).getName());
+  }
+
+  @Test
+  public void testPartiallyCommittedBatch() throws Exception {
+    metamodel.addEntity(RefusingEntity.class);
+    BulkSession bulk = new BulkSession(metamodel, repository, 10);
+    for (int i = 0; i < 5; i++) {
+      bulk.insert(new RefusingEntity("entity" + i));
+    }
+    try {
+      bulk.flush();
+      fail("Post persist of entity2 should fail");
+    } catch (BulkInsertException e) {
+      assertEquals(3, e.getCommitted().size());
+    }
+    assertEquals(3, bulk.getInsertedCount());
+    assertEquals(3, repository.getIndex().getCount(RefusingEntity.class));
+    try (Stream<Path> files = Files.list(repository.getPath().resolve(RefusingEntity.class.getSimpleName()))) {
+      assertEquals(3, files.count());//no flush files left
+    }
+
+    bulk.insert(new RefusingEntity("entity5"));
+    bulk.close();
+    assertEquals(4, repository.getIndex().getCount(RefusingEntity.class));
+  }
+
+  @Entity
+  public static class RefusingEntity extends NamedEntity {
+    protected RefusingEntity() {
+      super(null);
+    }
+
+    public RefusingEntity(String name) {
+      super(name);
+    }
+
+    @PostPersist
+    public void postPersist() {
+      if ("entity2".equals(getName())) {
+        throw new IllegalStateException("Refusing " + getName());
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session;
+
+import de.ks.flatadocdb.Repository;
+import de.ks.flatadocdb.TempRepository;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.metamodel.TestEntity;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTest {
+  private MetaModel metamodel;
+  private Repository repository;
+  private EntityCache cache;
+
+  @Rule
+  public TempRepository tempRepository = new TempRepository();
+
+  @Before
+  public void setUp() throws Exception {
+    repository = tempRepository.getRepository();
+    metamodel = tempRepository.getMetaModel();
+    metamodel.addEntity(TestEntity.class);
+    metamodel.addEntity(Related.class);
+    cache = new EntityCache(1024 * 1024).enable(TestEntity.class);
+
+    Session session = new Session(metamodel, repository);
+    session.persist(new TestEntity("Schnitzel").setAttribute("tasty"));
+    session.persist(new Related("related"));
+    session.prepare();
+    session.commit();
+  }
+
+  @Test
+  public void testCacheHit() throws Exception {
+    TestEntity first = new Session(metamodel, repository, false, cache).findByNaturalId(TestEntity.class, "Schnitzel");
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    TestEntity second = new Session(metamodel, repository, true, cache).findByNaturalId(TestEntity.class, "Schnitzel");
+    assertEquals(1, cache.getHitCount());
+    assertNotSame(first, second);
+    assertEquals("tasty", second.getAttribute());
+
+    new Session(metamodel, repository, false, cache).findByNaturalId(Related.class, "related");
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public void testInvalidateOnCommit() throws Exception {
+    Session session = new Session(metamodel, repository, false, cache);
+    session.findByNaturalId(TestEntity.class, "Schnitzel").setAttribute("crunchy");
+    session.prepare();
+    session.commit();
+    assertEquals(0, cache.getSize());
+
+    TestEntity reloaded = new Session(metamodel, repository, false, cache).findByNaturalId(TestEntity.class, "Schnitzel");
+    assertEquals("crunchy", reloaded.getAttribute());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @Test
+  public void testChangedMd5() throws Exception {
+    TestEntity entity = new Session(metamodel, repository, false, cache).findByNaturalId(TestEntity.class, "Schnitzel");
+    Path path = entity.getPathInRepository();
+    byte[] changed = new String(Files.readAllBytes(path), "UTF-8").replace("tasty", "soggy").getBytes("UTF-8");
+    Files.write(path, changed, StandardOpenOption.TRUNCATE_EXISTING);
+    repository.getIndex().getById(entity.getId()).setMd5Sum(DigestUtils.md5(changed));//as done by the watcher
+
+    TestEntity reloaded = new Session(metamodel, repository, false, cache).findByNaturalId(TestEntity.class, "Schnitzel");
+    assertEquals("soggy", reloaded.getAttribute());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    EntityCache small = new EntityCache(1).enable(TestEntity.class);
+    new Session(metamodel, repository, false, small).findByNaturalId(TestEntity.class, "Schnitzel");
+    new Session(metamodel, repository, false, small).findByNaturalId(TestEntity.class, "Schnitzel");
+    assertEquals(0, small.getHitCount());
+    assertEquals(0, small.getSize());
+  }
+}
@@ -18,20 +18,46 @@ package de.ks.flatadocdb.session;
 
 import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.TempRepository;
+import de.ks.flatadocdb.annotation.Entity;
+import de.ks.flatadocdb.entity.NamedEntity;
+import de.ks.flatadocdb.ifc.LuceneDocumentExtractor;
 import de.ks.flatadocdb.index.StandardLuceneFields;
 import de.ks.flatadocdb.metamodel.MetaModel;
 import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.index.IndexElement;
+import de.ks.flatadocdb.index.LuceneIndex;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
 
 public class LuceneIndexTest {
 
@@ -112,4 +138,269 @@ public class LuceneIndexTest {
     int documentAmount = session.lucene(searcher -> searcher.getIndexReader().maxDoc());
     assertEquals(0, documentAmount);
   }
+
+  @Test
+  public void testSearchPage() throws Exception {
+    Session session = new Session(metamodel, repository);
+    for (int i = 0; i < 25; i++) {
+      session.persist(new TestEntity("Schnitzel" + i));
+    }
+    session.prepare();
+    session.commit();
+    List<String> ids = repository.getIndex().getAllOf(TestEntity.class).stream().map(IndexElement::getId).sorted().collect(Collectors.toList());
+
+    session = new Session(metamodel, repository);
+    Sort byId = new Sort(new SortField(StandardLuceneFields.ID.name(), SortField.Type.STRING));
+    SearchResult<TestEntity> page = session.search(TestEntity.class, new MatchAllDocsQuery(), 10, 10, byId);
+    assertEquals(25, page.getTotalHits());
+    assertTrue(page.hasNext());
+    assertEquals(ids.subList(10, 20), page.getIds());
+    assertEquals(ids.subList(10, 20), page.stream().map(TestEntity::getId).collect(Collectors.toList()));
+
+    page = session.search(TestEntity.class, new TermQuery(new Term(StandardLuceneFields.NATURAL_ID.name(), "Schnitzel3")), 0, 10, null);
+    assertEquals(1, page.getTotalHits());
+    assertFalse(page.hasNext());
+    assertEquals("Schnitzel3", page.get(0).getName());
+
+    assertEquals(0, session.search(String.class, new MatchAllDocsQuery(), 0, 10, null).getTotalHits());
+
+    page = session.search(TestEntity.class, new MatchAllDocsQuery(), 0, Integer.MAX_VALUE, byId);
+    assertEquals(ids, page.getIds());
+    page = session.search(TestEntity.class, new MatchAllDocsQuery(), 20, Integer.MAX_VALUE, null);
+    assertEquals(5, page.getIds().size());
+    assertEquals(0, session.search(TestEntity.class, new MatchAllDocsQuery(), Integer.MAX_VALUE, Integer.MAX_VALUE, byId).getIds().size());
+  }
+
+  @Test
+  public void testFacetsAndSort() throws Exception {
+    Session session = new Session(metamodel, repository);
+    for (int i = 0; i < 5; i++) {
+      session.persist(new TestEntity("Schnitzel" + i).setAttribute(i % 2 == 0 ? "Saftig" : "Zaeh"));
+    }
+    session.prepare();
+    session.commit();
+
+    session = new Session(metamodel, repository);
+    Map<String, Integer> facets = session.facets(TestEntity.class, new MatchAllDocsQuery(), "attribute");
+    assertEquals(Arrays.asList("Saftig", "Zaeh"), new ArrayList<>(facets.keySet()));
+    assertEquals(3, (int) facets.get("Saftig"));
+    assertEquals(2, (int) facets.get("Zaeh"));
+    assertEquals(2, (int) session.luceneQuery(TestEntity.class).fullText(new TermQuery(new Term("attribute", "Zaeh"))).facets("attribute").get("Zaeh"));
+
+    Sort byAttribute = new Sort(new SortField("attribute", SortField.Type.STRING, true));
+    SearchResult<TestEntity> page = session.search(TestEntity.class, new MatchAllDocsQuery(), 0, 2, byAttribute);
+    assertEquals("Zaeh", page.get(0).getAttribute());
+    assertEquals("Zaeh", page.get(1).getAttribute());
+  }
+
+  @Test
+  public void testEntityClassFilter() throws Exception {
+    metamodel.addEntity(Related.class);
+    Session session = new Session(metamodel, repository);
+    session.persist(new TestEntity("Schnitzel"));
+    session.persist(new Related("Pommes"));
+    session.prepare();
+    session.commit();
+
+    session = new Session(metamodel, repository);
+    LuceneIndex luceneIndex = repository.getLuceneIndex();
+    assertSame(luceneIndex.getEntityClassFilter(TestEntity.class), luceneIndex.getEntityClassFilter(TestEntity.class));
+    assertEquals(2, (int) session.lucene(searcher -> searcher.count(luceneIndex.getEntityClassFilter(NamedEntity.class))));
+
+    SearchResult<TestEntity> page = session.search(TestEntity.class, new MatchAllDocsQuery(), 0, 10, null);
+    assertEquals(1, page.getTotalHits());
+    assertEquals("Schnitzel", page.get(0).getName());
+    assertEquals(Collections.singletonMap("Pommes", 1), session.facets(Related.class, new MatchAllDocsQuery(), "name"));
+    assertEquals(2, session.search(NamedEntity.class, new MatchAllDocsQuery(), 0, 10, null).getTotalHits());
+  }
+
+  @Test
+  public void testVisibleInOtherThread() throws Exception {
+    Session session = new Session(metamodel, repository);
+    session.persist(new TestEntity("Schnitzel"));
+    session.prepare();
+    session.commit();
+
+    LuceneIndex luceneIndex = repository.getLuceneIndex();
+    TermQuery termQuery = new TermQuery(new Term(StandardLuceneFields.NATURAL_ID.name(), "Schnitzel"));
+    long hits = CompletableFuture.supplyAsync(() -> {
+      long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+      while (System.currentTimeMillis() < end) {
+        IndexSearcher searcher = luceneIndex.acquireSearcher();
+        try {
+          int count = searcher.count(termQuery);
+          if (count > 0) {
+            return (long) count;
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        } finally {
+          luceneIndex.releaseSearcher(searcher);
+        }
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return 0L;
+    }).get();
+    assertEquals(1, hits);
+  }
+
+  @Test
+  public void testCatchUpMissingTail() throws Exception {
+    for (String name : new String[]{"first", "second", "third"}) {
+      Session session = new Session(metamodel, repository);
+      session.persist(new TestEntity(name));
+      session.prepare();
+      session.commit();
+    }
+    IndexElement second = repository.getIndex().getByNaturalId(new NaturalId(TestEntity.class, "second"));
+    IndexElement third = repository.getIndex().getByNaturalId(new NaturalId(TestEntity.class, "third"));
+    repository.close();
+    assertEquals(repository.getIndex().getSequence(), repository.getLuceneIndex().getCommittedSequence());
+
+    //simulate a crash after the second entity was committed, with a document of an entity deleted meanwhile
+    try (Directory directory = FSDirectory.open(tempRepository.getPath().resolve(LuceneIndex.LUCENE_INDEX_FOLDER)); //
+         IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+      writer.deleteDocuments(new Term(StandardLuceneFields.ID.name(), third.getId()));
+      Document vanished = new Document();
+      vanished.add(StandardLuceneFields.ID.create("ffffffffffffffffffffffffffffffffffffffff"));
+      writer.addDocument(vanished);
+      HashMap<String, String> commitData = new HashMap<>(writer.getCommitData());
+      commitData.put(LuceneIndex.SEQUENCE_KEY, String.valueOf(second.getSequence()));
+      writer.setCommitData(commitData);
+      writer.commit();
+    }
+
+    Repository reopened = new Repository(tempRepository.getPath());
+    try {
+      reopened.initialize(metamodel, Executors.newSingleThreadExecutor());
+      LuceneIndex luceneIndex = reopened.getLuceneIndex();
+      assertEquals(reopened.getIndex().getSequence(), luceneIndex.getCommittedSequence());
+      IndexReader reader = luceneIndex.getIndexReader();
+      try {
+        assertEquals(3, reader.numDocs());
+      } finally {
+        reader.decRef();
+      }
+      Session session = new Session(metamodel, reopened);
+      assertEquals(1, (int) session.lucene(searcher -> searcher.count(new TermQuery(new Term(StandardLuceneFields.ID.name(), third.getId())))));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testAsyncUpdates() throws Exception {
+    repository.getLuceneIndex().enableAsyncUpdates(2);
+    TermQuery termQuery = new TermQuery(new Term(StandardLuceneFields.NATURAL_ID.name(), "Schnitzel"));
+
+    TestEntity testEntity = new TestEntity("Schnitzel").setAttribute("Saftig");
+    Session session = new Session(metamodel, repository);
+    session.persist(testEntity);
+    session.prepare();
+    session.commit();
+    session.awaitSearchable();
+    assertEquals(1, (int) session.lucene(searcher -> searcher.count(termQuery)));
+
+    session = new Session(metamodel, repository);
+    session.findById(TestEntity.class, testEntity.getId()).setAttribute("Zaeh");
+    session.prepare();
+    session.commit();
+    session.awaitSearchable();
+    Document document = session.lucene(searcher -> searcher.doc(searcher.search(termQuery, 1).scoreDocs[0].doc));
+    assertEquals("Zaeh", document.get("attribute"));
+
+    session = new Session(metamodel, repository);
+    session.remove(session.findById(TestEntity.class, testEntity.getId()));
+    session.prepare();
+    session.commit();
+    session.awaitSearchable();
+    assertEquals(0, (int) session.lucene(searcher -> searcher.count(termQuery)));
+  }
+
+  @Test
+  public void testFailingUpdateIsAcknowledgedAndReindexed() throws Exception {
+    metamodel.addEntity(FailingEntity.class);
+    LuceneIndex luceneIndex = repository.getLuceneIndex();
+    FailingEntity entity = new FailingEntity("broken");
+    FailingExtractor.fail = true;
+    try {
+      Session session = new Session(metamodel, repository);
+      session.persist(entity);
+      session.prepare();
+      session.commit();
+    } finally {
+      FailingExtractor.fail = false;
+    }
+
+    assertEquals(repository.getIndex().getSequence(), repository.getIndex().getAcknowledgedSequence());
+    assertEquals(Collections.singleton(entity.getId()), luceneIndex.getFailedIds());
+    assertEquals(0, countNaturalId("broken"));
+
+    luceneIndex.commit();
+    assertTrue(luceneIndex.getFailedIds().isEmpty());
+    assertEquals(repository.getIndex().getSequence(), luceneIndex.getCommittedSequence());
+    try (IndexReader reader = DirectoryReader.open(luceneIndex.getDirectory())) {//reindexed by other threads, read the commit
+      assertEquals(1, new IndexSearcher(reader).search(naturalIdQuery("broken"), 1).totalHits);
+    }
+  }
+
+  @Test
+  public void testPermanentlyFailingUpdateIsGivenUp() throws Exception {
+    metamodel.addEntity(FailingEntity.class);
+    LuceneIndex luceneIndex = repository.getLuceneIndex();
+    FailingEntity entity = new FailingEntity("broken");
+    FailingExtractor.fail = true;
+    try {
+      Session session = new Session(metamodel, repository);
+      session.persist(entity);
+      session.prepare();
+      session.commit();
+
+      for (int i = 1; i < LuceneIndex.MAX_FAILED_UPDATES; i++) {
+        assertEquals(Collections.singleton(entity.getId()), luceneIndex.getFailedIds());
+        luceneIndex.commit();
+      }
+      assertTrue(luceneIndex.getFailedIds().isEmpty());
+      luceneIndex.commit();
+      assertTrue(luceneIndex.getFailedIds().isEmpty());
+    } finally {
+      FailingExtractor.fail = false;
+    }
+    assertEquals(repository.getIndex().getSequence(), luceneIndex.getCommittedSequence());
+  }
+
+  private int countNaturalId(String naturalId) {
+    return new Session(metamodel, repository).lucene(searcher -> searcher.search(naturalIdQuery(naturalId), 1).totalHits);
+  }
+
+  private TermQuery naturalIdQuery(String naturalId) {
+    return new TermQuery(new Term(StandardLuceneFields.NATURAL_ID.name(), naturalId));
+  }
+
+  @Entity(luceneDocExtractor = FailingExtractor.class)
+  public static class FailingEntity extends NamedEntity {
+    protected FailingEntity() {
+      super(null);
+    }
+
+    public FailingEntity(String name) {
+      super(name);
+    }
+  }
+
+  public static class FailingExtractor implements LuceneDocumentExtractor<FailingEntity> {
+    static volatile boolean fail;
+
+    @Override
+    public Document createDocument(FailingEntity instance) {
+      if (fail) {
+        throw new IllegalStateException("Extraction failed");
+      }
+      return new Document();
+    }
+  }
 }
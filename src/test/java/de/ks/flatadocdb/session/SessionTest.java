@@ -19,6 +19,7 @@ package de.ks.flatadocdb.session;
 import de.ks.flatadocdb.Repository;
 import de.ks.flatadocdb.TempRepository;
 import de.ks.flatadocdb.defaults.DefaultFileGenerator;
+import de.ks.flatadocdb.exception.ReadOnlySessionException;
 import de.ks.flatadocdb.exception.StaleObjectFileException;
 import de.ks.flatadocdb.exception.StaleObjectStateException;
 import de.ks.flatadocdb.index.GlobalIndex;
@@ -88,6 +89,38 @@ public class SessionTest {
     assertFalse(files[0].exists());
   }
 
+  @Test
+  public void testReadOnlySession() throws Exception {
+    Session session = new Session(metamodel, repository);
+    session.persist(new TestEntity("Schnitzel").setAttribute("tasty"));
+    session.prepare();
+    session.commit();
+
+    Session readOnly = new Session(metamodel, repository, true);
+    TestEntity loaded = readOnly.findByNaturalId(TestEntity.class, "Schnitzel");
+    assertNotNull(loaded);
+    loaded.setAttribute("crunchy");
+    readOnly.prepare();
+    readOnly.commit();
+    assertTrue(readOnly.actions.isEmpty());
+
+    try {
+      readOnly.persist(new TestEntity("Steak"));
+      fail("Read only session accepted a new entity");
+    } catch (ReadOnlySessionException e) {
+      //expected
+    }
+    try {
+      readOnly.remove(loaded);
+      fail("Read only session removed an entity");
+    } catch (ReadOnlySessionException e) {
+      //expected
+    }
+
+    session = new Session(metamodel, repository);
+    assertEquals("tasty", session.findByNaturalId(TestEntity.class, "Schnitzel").getAttribute());
+  }
+
   @Test
   public void testLocalSessionView() {
     Session session1 = new Session(metamodel, repository);
@@ -0,0 +1,76 @@
+/*
+ * Copyright [2015] [Christian Loehnert]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.ks.flatadocdb.session.dirtycheck;
+
+import de.ks.flatadocdb.metamodel.EntityDescriptor;
+import de.ks.flatadocdb.metamodel.MetaModel;
+import de.ks.flatadocdb.metamodel.TestEntity;
+import de.ks.flatadocdb.session.Related;
+import de.ks.flatadocdb.session.RelationOwner;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntitySnapshotTest {
+  private MetaModel metaModel;
+
+  @Before
+  public void setUp() throws Exception {
+    metaModel = new MetaModel();
+    metaModel.addEntity(TestEntity.class);
+    metaModel.addEntity(RelationOwner.class);
+    metaModel.addEntity(Related.class);
+  }
+
+  @Test
+  public void testChangedAttribute() throws Exception {
+    EntityDescriptor descriptor = metaModel.getEntityDescriptor(TestEntity.class);
+    TestEntity entity = new TestEntity("Schnitzel").setAttribute("tasty");
+
+    EntitySnapshot snapshot = EntitySnapshot.capture(descriptor, entity);
+    assertTrue(snapshot.isComparable());
+    assertTrue(snapshot.isUnchanged(descriptor, entity));
+
+    entity.setAttribute(new String("tasty"));
+    assertTrue(snapshot.isUnchanged(descriptor, entity));
+
+    entity.setAttribute("crunchy");
+    assertFalse(snapshot.isUnchanged(descriptor, entity));
+  }
+
+  @Test
+  public void testChangedRelation() throws Exception {
+    EntityDescriptor descriptor = metaModel.getEntityDescriptor(RelationOwner.class);
+    RelationOwner owner = new RelationOwner("owner");
+    Related related = new Related("related");
+    owner.getRelatedList().add(related);
+
+    EntitySnapshot snapshot = EntitySnapshot.capture(descriptor, owner);
+    assertTrue(snapshot.isComparable());
+    assertTrue(snapshot.isUnchanged(descriptor, owner));
+
+    owner.getRelatedList().remove(related);
+    owner.getRelatedList().add(new Related("related"));
+    assertFalse(snapshot.isUnchanged(descriptor, owner));
+
+    snapshot = EntitySnapshot.capture(descriptor, owner);
+    owner.setChild(related);
+    assertFalse(snapshot.isUnchanged(descriptor, owner));
+  }
+}
@@ -29,7 +29,9 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -77,6 +79,58 @@ public class RelationTest {
     assertTrue(childPath.toFile().exists());
   }
 
+  @Test
+  public void testFindByIds() throws Exception {
+    Related shared = new Related("shared");
+    RelationOwner first = new RelationOwner("first");
+    first.getRelatedSet().add(shared);
+    RelationOwner second = new RelationOwner("second");
+    second.getRelatedSet().add(shared);
+
+    Session session = new Session(metamodel, repository);
+    session.persist(first);
+    session.persist(second);
+    session.prepare();
+    session.commit();
+
+    session = new Session(metamodel, repository);
+    List<RelationOwner> owners = session.findByIds(RelationOwner.class, Arrays.asList(second.getId(), "unknown", first.getId()));
+    assertEquals(2, owners.size());
+    assertEquals("second", owners.get(0).getName());
+    assertEquals("first", owners.get(1).getName());
+    Related sharedFromFirst = owners.get(1).getRelatedSet().iterator().next();
+    assertSame(sharedFromFirst, owners.get(0).getRelatedSet().iterator().next());
+    assertSame(sharedFromFirst, session.findById(shared.getId()));
+    assertSame(owners.get(1), session.findById(first.getId()));
+
+    List<RelationOwner> byNaturalId = session.findByNaturalIds(RelationOwner.class, Arrays.asList("first", "second"));
+    assertEquals(Arrays.asList(owners.get(1), owners.get(0)), byNaturalId);
+  }
+
+  @Test
+  public void testFindByIdsSkipsOtherTypes() throws Exception {
+    RelationOwner owner = new RelationOwner("owner");
+    Related related = new Related("related");
+    Related unloaded = new Related("unloaded");
+    Session session = new Session(metamodel, repository);
+    session.persist(owner);
+    session.persist(related);
+    session.persist(unloaded);
+    session.prepare();
+    session.commit();
+
+    session = new Session(metamodel, repository);
+    session.findById(related.getId());
+    List<String> ids = Arrays.asList(related.getId(), owner.getId(), unloaded.getId());
+    List<RelationOwner> owners = session.findByIds(RelationOwner.class, ids);
+    assertEquals(1, owners.size());
+    assertEquals("owner", owners.get(0).getName());
+    assertEquals(2, new SessionFriend(session).getEntries().size());//unloaded Related was not read
+
+    assertEquals(2, session.findByIds(Related.class, ids).size());
+    assertEquals(3, session.findByIds(Object.class, ids).size());
+  }
+
   /**
    * if same entity added as child and normal relation we only persist it as normal entity, not as child
    *